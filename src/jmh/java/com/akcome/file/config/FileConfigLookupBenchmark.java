@@ -0,0 +1,121 @@
+package com.akcome.file.config;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+
+import com.akcome.file.srv.BenchSupport;
+import com.akcome.file.srv.FileService;
+
+/**
+ * 配置查询：原来每次查询都将配置列表转换为新的Map，现在直接查询只读索引；service*为AbstractFileService.getFileConfig的完整路径。
+ * 使用-prof gc可以看到索引查询每次调用分配0字节
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(4)
+public class FileConfigLookupBenchmark {
+	@Param({ "4", "16" })
+	private int funcCount;
+	private Map<String, List<FileConfigInfo>> configMap;
+	private volatile FileConfigIndex index;
+	private File root;
+	private AnnotationConfigApplicationContext context;
+	private FileService fileService;
+	private final String appId = "app-7";
+
+	@Setup
+	public void setup() throws Exception {
+		configMap = new HashMap<>();
+		for (int i = 0; i < 32; i++) {
+			List<FileConfigInfo> configs = new ArrayList<>();
+			configs.add(new FileConfigInfo(FileConfigIndex.DEFAULT_FUNC, "app-" + i, 10485760L, 52428800L, 60, false));
+			for (int j = 1; j < funcCount; j++) {
+				configs.add(new FileConfigInfo("func-" + j, "app-" + i + "/" + j, 10485760L, 52428800L, 60, false));
+			}
+			configMap.put("app-" + i, configs);
+		}
+		index = new FileConfigIndex(configMap);
+		FileConfigRegistry registry = new FileConfigRegistry();
+		registry.publish(index);
+		root = Files.createTempDirectory("config-bench").toFile();
+		context = BenchSupport.newContext(root, registry);
+		fileService = context.getBean(FileService.class);
+	}
+
+	@TearDown
+	public void tearDown() {
+		context.close();
+		FileUtils.deleteQuietly(root);
+	}
+
+	@Benchmark
+	public FileConfigInfo listToMapDefault() {
+		return lookupByList(appId, null);
+	}
+
+	@Benchmark
+	public FileConfigInfo listToMapFunc() {
+		return lookupByList(appId, "func-1");
+	}
+
+	@Benchmark
+	public FileConfigInfo indexDefault() {
+		return lookupByIndex(appId, null);
+	}
+
+	@Benchmark
+	public FileConfigInfo indexFunc() {
+		return lookupByIndex(appId, "func-1");
+	}
+
+	@Benchmark
+	public FileConfigInfo serviceDefault() {
+		return fileService.getFileConfig(appId);
+	}
+
+	@Benchmark
+	public FileConfigInfo serviceFunc() {
+		return fileService.getFileConfig(appId, "func-1");
+	}
+
+	/**
+	 * 原来的查询方式（不含缓存代理的开销）
+	 */
+	private FileConfigInfo lookupByList(String appId, String func) {
+		List<FileConfigInfo> list = configMap.get(appId);
+		Map<String, FileConfigInfo> configs = list.stream()
+				.collect(Collectors.toMap(FileConfigInfo::getFunc, (v) -> v));
+		FileConfigInfo config = configs.get(func == null ? FileConfigIndex.DEFAULT_FUNC : func);
+		return config == null ? configs.get(FileConfigIndex.DEFAULT_FUNC) : config;
+	}
+
+	private FileConfigInfo lookupByIndex(String appId, String func) {
+		return index.getConfig(appId, func);
+	}
+}
@@ -0,0 +1,86 @@
+package com.akcome.file.srv;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+import org.springframework.context.support.PropertySourcesPlaceholderConfigurer;
+import org.springframework.core.env.MapPropertySource;
+
+import com.akcome.file.config.FileConfigIndex;
+import com.akcome.file.config.FileConfigInfo;
+import com.akcome.file.config.FileConfigRegistry;
+
+/**
+ * 性能测试使用的组件装配：只注册文件服务相关组件的spring上下文，配置来自内存中的索引，不需要MySQL和Redis
+ */
+public final class BenchSupport {
+	public static final String GROUP = "bench";
+
+	private BenchSupport() {
+	}
+
+	/**
+	 * 内存中的配置：tmp分组、bench分组以及若干个应用，每个应用有funcCount个配置
+	 */
+	public static FileConfigRegistry newRegistry(int appCount, int funcCount, int shardLevels, int timeout) {
+		Map<String, List<FileConfigInfo>> configMap = new HashMap<>();
+		configMap.put(FileService.DEFAULT_GROUP, newConfigs("tmp", funcCount, shardLevels, timeout));
+		configMap.put(GROUP, newConfigs(GROUP, funcCount, shardLevels, timeout));
+		for (int i = 0; i < appCount; i++) {
+			configMap.put("app-" + i, newConfigs("app-" + i, funcCount, shardLevels, timeout));
+		}
+		FileConfigRegistry registry = new FileConfigRegistry();
+		registry.publish(new FileConfigIndex(configMap));
+		return registry;
+	}
+
+	private static List<FileConfigInfo> newConfigs(String path, int funcCount, int shardLevels, int timeout) {
+		List<FileConfigInfo> configs = new ArrayList<>();
+		for (int j = 0; j < funcCount; j++) {
+			String func = j == 0 ? FileConfigIndex.DEFAULT_FUNC : "func-" + j;
+			FileConfigInfo config = new FileConfigInfo(func, path, Long.MAX_VALUE, Long.MAX_VALUE, timeout, false);
+			config.setShardLevels(shardLevels);
+			configs.add(config);
+		}
+		return configs;
+	}
+
+	/**
+	 * 创建并启动上下文，文件保存在root下；元数据索引显式开启，过期线程不启动，由clearTimeoutFile清理。
+	 * 使用结束后需要close，关闭时执行各组件的@PreDestroy
+	 */
+	public static AnnotationConfigApplicationContext newContext(File root, FileConfigRegistry registry) {
+		Map<String, Object> props = new HashMap<>();
+		props.put("fs.tmp.dir", new File(root, "tmp").getAbsolutePath());
+		props.put("fs.dir", new File(root, "file").getAbsolutePath());
+		props.put("fs.meta.enabled", "true");
+		props.put("fs.io.threads", "4");
+		// 用量只做增量统计，基准运行期间不做后台校正
+		props.put("fs.quota.reconcile-interval", "3600000");
+		props.put("fs.quota.reconcile-delay", "3600000");
+		AnnotationConfigApplicationContext context = new AnnotationConfigApplicationContext();
+		context.getEnvironment().getPropertySources().addFirst(new MapPropertySource("bench", props));
+		context.getBeanFactory().registerSingleton("fileConfigRegistry", registry);
+		context.register(PropertySourcesPlaceholderConfigurer.class, FileService.class, FileDownloader.class,
+				BlobStore.class, TmpFileJournal.class, ManualExpirer.class, HotFileCache.class,
+				CompressedVariants.class, ThumbnailService.class, FileMetadataIndex.class, DirectoryLister.class,
+				StorageQuota.class, TransferLimiter.class, TransferMetrics.class, AsyncFileWriter.class);
+		context.refresh();
+		return context;
+	}
+
+	/**
+	 * 不启动过期线程，到期的文件只由clearTimeoutFile清理，避免后台删除干扰测量
+	 */
+	static class ManualExpirer extends TmpFileExpirer {
+		@Override
+		public synchronized void start(Consumer<TmpFileInfo> action) {
+			// 不启动
+		}
+	}
+}
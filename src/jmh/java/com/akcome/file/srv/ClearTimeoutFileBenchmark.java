@@ -0,0 +1,65 @@
+package com.akcome.file.srv;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+
+/**
+ * clearTimeoutFile清理大量已到期的零时文件（分组超时时间为0，保存后立即到期）
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ClearTimeoutFileBenchmark {
+	@Param({ "1000", "10000" })
+	private int queueSize;
+	private File root;
+	private AnnotationConfigApplicationContext context;
+	private FileService fileService;
+	private final byte[] content = new byte[128];
+
+	@Setup(Level.Trial)
+	public void setup() throws Exception {
+		root = Files.createTempDirectory("expire-bench").toFile();
+		context = BenchSupport.newContext(root, BenchSupport.newRegistry(0, 1, 1, 0));
+		fileService = context.getBean(FileService.class);
+	}
+
+	@Setup(Level.Invocation)
+	public void fillQueue() throws Exception {
+		for (int i = 0; i < queueSize; i++) {
+			fileService.storeFile(new ByteArrayInputStream(content), "a.txt", FileService.DEFAULT_GROUP);
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		context.close();
+		FileUtils.deleteQuietly(root);
+	}
+
+	@Benchmark
+	public void clearTimeoutFile() {
+		fileService.clearTimeoutFile();
+	}
+}
@@ -0,0 +1,107 @@
+package com.akcome.file.srv;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+
+/**
+ * 下载时的文件拷贝：FileDownloader.copy（池化直接内存+按位置读取）与其他拷贝方式对比，输出到丢弃数据的输出流
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DownloadCopyBenchmark {
+	@Param({ "65536", "4194304" })
+	private int fileSize;
+	private File root;
+	private File file;
+	private AnnotationConfigApplicationContext context;
+	private FileDownloader downloader;
+	private final CountingOutputStream out = new CountingOutputStream();
+
+	@Setup
+	public void setup() throws Exception {
+		root = Files.createTempDirectory("copy-bench").toFile();
+		file = new File(root, "data.bin");
+		byte[] content = new byte[fileSize];
+		new Random(1).nextBytes(content);
+		FileUtils.writeByteArrayToFile(file, content);
+		context = BenchSupport.newContext(root, BenchSupport.newRegistry(0, 1, 0, 60));
+		downloader = context.getBean(FileDownloader.class);
+	}
+
+	@TearDown
+	public void tearDown() {
+		context.close();
+		FileUtils.deleteQuietly(root);
+	}
+
+	@Benchmark
+	public long fileDownloaderCopy() throws IOException {
+		downloader.copy(file, 0, fileSize, out);
+		return out.count;
+	}
+
+	/**
+	 * 原来的方式：FileInputStream加4KB堆内缓冲区
+	 */
+	@Benchmark
+	public long streamCopy() throws IOException {
+		try (InputStream in = new FileInputStream(file)) {
+			return IOUtils.copyLarge(in, out);
+		}
+	}
+
+	@Benchmark
+	public long channelTransferTo() throws IOException {
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			return channel.transferTo(0, fileSize, Channels.newChannel(out));
+		}
+	}
+
+	@Benchmark
+	public long filesCopy() throws IOException {
+		return Files.copy(file.toPath(), out);
+	}
+
+	private static class CountingOutputStream extends OutputStream {
+		private long count;
+
+		@Override
+		public void write(int b) {
+			count++;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) {
+			count += len;
+		}
+	}
+}
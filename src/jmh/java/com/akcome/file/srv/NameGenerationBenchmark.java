@@ -0,0 +1,67 @@
+package com.akcome.file.srv;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * 生成新文件名：原来生成UUID后用exists()检查是否重名，现在直接生成，文件已存在时写入失败，不会覆盖
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class NameGenerationBenchmark {
+	@Param({ "0", "50000" })
+	private int population;
+	private File root;
+
+	@Setup
+	public void setup() throws Exception {
+		root = Files.createTempDirectory("name-bench").toFile();
+		for (int i = 0; i < population; i++) {
+			new File(root, UUID.randomUUID().toString() + ".jpg").createNewFile();
+		}
+	}
+
+	@TearDown
+	public void tearDown() {
+		FileUtils.deleteQuietly(root);
+	}
+
+	@Benchmark
+	public String uuidOnly() {
+		return UUID.randomUUID().toString() + ".jpg";
+	}
+
+	@Benchmark
+	public File uuidWithExistsProbe() {
+		File file;
+		do {
+			file = new File(root, UUID.randomUUID().toString() + ".jpg");
+		} while (file.exists());
+		return file;
+	}
+
+	@Benchmark
+	public File uuidSharded() {
+		return ShardLayout.locate(root, 2, UUID.randomUUID().toString() + ".jpg");
+	}
+}
@@ -0,0 +1,88 @@
+package com.akcome.file.srv;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+
+import com.akcome.file.config.FileConfigRegistry;
+
+/**
+ * FileService.storeFile：不同的文件大小、分组文件夹中已有的文件数以及分桶级数
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StoreFileBenchmark {
+	@Param({ "1024", "65536", "1048576" })
+	private int fileSize;
+	@Param({ "0", "20000" })
+	private int population;
+	@Param({ "0", "1" })
+	private int shardLevels;
+	private File root;
+	private AnnotationConfigApplicationContext context;
+	private FileService fileService;
+	private byte[] content;
+	private String lastFileName;
+
+	@Setup(Level.Trial)
+	public void setup() throws Exception {
+		root = Files.createTempDirectory("store-bench").toFile();
+		FileConfigRegistry registry = BenchSupport.newRegistry(0, 1, shardLevels, 60);
+		context = BenchSupport.newContext(root, registry);
+		fileService = context.getBean(FileService.class);
+		content = new byte[fileSize];
+		new Random(1).nextBytes(content);
+		File groupDir = new File(new File(root, "file"), BenchSupport.GROUP);
+		for (int i = 0; i < population; i++) {
+			File file = ShardLayout.locate(groupDir, shardLevels, UUID.randomUUID().toString() + ".bin");
+			file.getParentFile().mkdirs();
+			file.createNewFile();
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws Exception {
+		context.close();
+		FileUtils.deleteQuietly(root);
+	}
+
+	/**
+	 * 删除刚保存的文件，保持分组文件夹中的文件数不变
+	 */
+	@TearDown(Level.Invocation)
+	public void deleteStored() throws Exception {
+		File file = fileService.getFile(lastFileName, BenchSupport.GROUP);
+		if (file != null) {
+			file.delete();
+		}
+	}
+
+	@Benchmark
+	public String storeFile() throws Exception {
+		lastFileName = fileService.storeFile(new ByteArrayInputStream(content), "a.bin", BenchSupport.GROUP);
+		return lastFileName;
+	}
+}
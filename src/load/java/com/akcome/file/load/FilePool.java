@@ -0,0 +1,55 @@
+package com.akcome.file.load;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * 压力测试中一个分组当前存在的文件名，下载时随机读取，移动和删除时随机取出
+ */
+public class FilePool {
+	private final String group;
+	private final List<String> fileNames = new ArrayList<>();
+
+	public FilePool(String group) {
+		this.group = group;
+	}
+
+	public String getGroup() {
+		return group;
+	}
+
+	public synchronized void add(String fileName) {
+		fileNames.add(fileName);
+	}
+
+	/**
+	 * 随机获取一个文件名，文件仍保留在池中
+	 *
+	 * @return 文件名，池为空时返回null
+	 */
+	public synchronized String peek() {
+		return fileNames.isEmpty() ? null : fileNames.get(ThreadLocalRandom.current().nextInt(fileNames.size()));
+	}
+
+	/**
+	 * 随机取出一个文件名
+	 *
+	 * @return 文件名，池为空时返回null
+	 */
+	public synchronized String take() {
+		if (fileNames.isEmpty()) {
+			return null;
+		}
+		int i = ThreadLocalRandom.current().nextInt(fileNames.size());
+		String last = fileNames.remove(fileNames.size() - 1);
+		if (i == fileNames.size()) {
+			return last;
+		}
+		return fileNames.set(i, last);
+	}
+
+	public synchronized int size() {
+		return fileNames.size();
+	}
+}
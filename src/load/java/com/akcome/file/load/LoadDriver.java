@@ -0,0 +1,382 @@
+package com.akcome.file.load;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import org.apache.http.HttpStatus;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.entity.mime.MultipartEntityBuilder;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.util.EntityUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+
+import com.akcome.common.file.FileClientUtil;
+import com.akcome.common.request.in.FileInfo;
+import com.akcome.file.srv.FileService;
+import com.akcome.file.srv.LatencyHistogram;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * 通过HTTP向服务发起混合的上传、下载、移动分组和删除请求，按接口统计吞吐量和耗时。
+ * 固定并发模式下每个线程收到响应后立即发起下一个请求；固定速率模式下按计划时间发起请求，
+ * 耗时从计划时间开始计算，服务变慢时排队的时间也计入耗时，避免协同遗漏（coordinated omission）
+ */
+public class LoadDriver {
+	public static final String UPLOAD = "upload";
+	public static final String DOWNLOAD = "download";
+	public static final String SWITCH = "switch";
+	public static final String DELETE = "delete";
+	private static final String[] OPERATIONS = { UPLOAD, DOWNLOAD, SWITCH, DELETE };
+	private final Logger logger = LoggerFactory.getLogger(getClass());
+	private final ObjectMapper mapper = new ObjectMapper();
+	private final String baseUrl;
+	private final FilePool tmpPool;
+	private final List<FilePool> groupPools;
+	private final List<byte[]> payloads;
+	/** 按OPERATIONS顺序的累计权重 */
+	private final int[] weights = new int[OPERATIONS.length];
+	private final CloseableHttpClient client;
+	private volatile Map<String, EndpointStats> stats = newStats();
+
+	/**
+	 * @param baseUrl
+	 *            服务地址，如http://127.0.0.1:8080
+	 * @param concurrency
+	 *            最大并发请求数
+	 * @param tmpPool
+	 *            零时文件分组的文件
+	 * @param groupPools
+	 *            业务分组的文件
+	 * @param payloads
+	 *            上传的文件内容
+	 * @param mix
+	 *            各类请求的权重，key为UPLOAD、DOWNLOAD、SWITCH、DELETE
+	 */
+	public LoadDriver(String baseUrl, int concurrency, FilePool tmpPool, List<FilePool> groupPools,
+			List<byte[]> payloads, Map<String, Integer> mix) {
+		this.baseUrl = baseUrl;
+		this.tmpPool = tmpPool;
+		this.groupPools = groupPools;
+		this.payloads = payloads;
+		int total = 0;
+		for (int i = 0; i < OPERATIONS.length; i++) {
+			total += Math.max(0, mix.getOrDefault(OPERATIONS[i], 0));
+			weights[i] = total;
+		}
+		if (total <= 0) {
+			throw new IllegalArgumentException("no request in mix:" + mix);
+		}
+		this.client = HttpClients.custom().setMaxConnTotal(concurrency).setMaxConnPerRoute(concurrency)
+				.disableContentCompression().build();
+	}
+
+	/**
+	 * 按固定并发发起请求
+	 *
+	 * @param concurrency
+	 *            并发请求数
+	 * @param warmupSeconds
+	 *            预热时间（秒），不计入结果
+	 * @param durationSeconds
+	 *            测试时间（秒）
+	 * @return 各接口的统计结果
+	 * @throws InterruptedException
+	 */
+	public Map<String, EndpointStats> runClosedLoop(int concurrency, int warmupSeconds, int durationSeconds)
+			throws InterruptedException {
+		long measureStart = System.nanoTime() + TimeUnit.SECONDS.toNanos(warmupSeconds);
+		long end = measureStart + TimeUnit.SECONDS.toNanos(durationSeconds);
+		CustomizableThreadFactory threadFactory = new CustomizableThreadFactory("load-");
+		List<Thread> threads = new ArrayList<>();
+		for (int i = 0; i < concurrency; i++) {
+			Thread thread = threadFactory.newThread(() -> {
+				long now;
+				while ((now = System.nanoTime()) < end) {
+					execute(now);
+				}
+			});
+			thread.start();
+			threads.add(thread);
+		}
+		return measure(measureStart, end, threads, null);
+	}
+
+	/**
+	 * 按固定速率发起请求，并发请求数达到上限时请求排队等待
+	 *
+	 * @param rate
+	 *            每秒发起的请求数
+	 * @param concurrency
+	 *            最大并发请求数
+	 * @param warmupSeconds
+	 *            预热时间（秒），不计入结果
+	 * @param durationSeconds
+	 *            测试时间（秒）
+	 * @return 各接口的统计结果
+	 * @throws InterruptedException
+	 */
+	public Map<String, EndpointStats> runOpenLoop(int rate, int concurrency, int warmupSeconds, int durationSeconds)
+			throws InterruptedException {
+		long start = System.nanoTime();
+		long measureStart = start + TimeUnit.SECONDS.toNanos(warmupSeconds);
+		long end = measureStart + TimeUnit.SECONDS.toNanos(durationSeconds);
+		ThreadPoolExecutor executor = new ThreadPoolExecutor(concurrency, concurrency, 0, TimeUnit.MILLISECONDS,
+				new LinkedBlockingQueue<>(), new CustomizableThreadFactory("load-"));
+		Thread scheduler = new Thread(() -> {
+			double interval = 1e9 / rate;
+			for (long i = 0;; i++) {
+				long intended = start + (long) (i * interval);
+				if (intended >= end) {
+					break;
+				}
+				long wait = intended - System.nanoTime();
+				if (wait > 0) {
+					LockSupport.parkNanos(wait);
+				}
+				executor.execute(() -> execute(intended));
+			}
+		}, "load-scheduler");
+		scheduler.start();
+		List<Thread> threads = new ArrayList<>();
+		threads.add(scheduler);
+		return measure(measureStart, end, threads, executor);
+	}
+
+	public void close() throws IOException {
+		client.close();
+	}
+
+	private Map<String, EndpointStats> measure(long measureStart, long end, List<Thread> threads,
+			ThreadPoolExecutor executor) throws InterruptedException {
+		TimeUnit.NANOSECONDS.sleep(Math.max(0, measureStart - System.nanoTime()));
+		// 预热结束，之后开始的请求计入新的统计
+		stats = newStats();
+		Map<String, EndpointStats> result = stats;
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		if (executor != null) {
+			// 测试时间内已发起的请求执行完再统计
+			executor.shutdown();
+			if (!executor.awaitTermination(5, TimeUnit.MINUTES)) {
+				logger.warn("{} requests still queued after test, discarded", executor.getQueue().size());
+				executor.shutdownNow();
+			}
+		}
+		return result;
+	}
+
+	private void execute(long startNanos) {
+		Map<String, EndpointStats> current = stats;
+		String operation = nextOperation();
+		long bytes = -1;
+		try {
+			switch (operation) {
+			case UPLOAD:
+				bytes = upload();
+				break;
+			case DOWNLOAD:
+				bytes = download();
+				break;
+			case SWITCH:
+				bytes = switchGroup();
+				break;
+			default:
+				bytes = delete();
+				break;
+			}
+		} catch (Exception e) {
+			logger.debug("{} failed", operation, e);
+		}
+		current.get(operation).record(System.nanoTime() - startNanos, bytes);
+	}
+
+	/**
+	 * 按权重随机选择请求类型，没有可移动或删除的文件时改为上传
+	 */
+	private String nextOperation() {
+		int r = ThreadLocalRandom.current().nextInt(weights[weights.length - 1]);
+		String operation = OPERATIONS[OPERATIONS.length - 1];
+		for (int i = 0; i < weights.length; i++) {
+			if (r < weights[i]) {
+				operation = OPERATIONS[i];
+				break;
+			}
+		}
+		if (SWITCH.equals(operation) && tmpPool.size() == 0) {
+			return UPLOAD;
+		}
+		return operation;
+	}
+
+	/**
+	 * 上传到零时文件分组
+	 *
+	 * @return 上传的字节数，失败时返回-1
+	 */
+	private long upload() throws IOException {
+		byte[] payload = payloads.get(ThreadLocalRandom.current().nextInt(payloads.size()));
+		HttpPost post = new HttpPost(baseUrl + "/file/v1/" + FileService.DEFAULT_GROUP + "/upload");
+		post.setEntity(MultipartEntityBuilder.create()
+				.addBinaryBody("file", payload, ContentType.APPLICATION_OCTET_STREAM, "load.bin").build());
+		JsonNode result = executeJson(post);
+		if (result == null) {
+			return -1;
+		}
+		FileInfo fileInfo = FileClientUtil.parseFilePathV1(result.path("obj").asText());
+		tmpPool.add(fileInfo.getFileName());
+		return payload.length;
+	}
+
+	/**
+	 * 从随机的分组下载随机的文件
+	 *
+	 * @return 下载的字节数，失败时返回-1
+	 */
+	private long download() throws IOException {
+		int i = ThreadLocalRandom.current().nextInt(groupPools.size() + 1);
+		FilePool pool = i == groupPools.size() ? tmpPool : groupPools.get(i);
+		String fileName = pool.peek();
+		if (fileName == null) {
+			return -1;
+		}
+		HttpGet get = new HttpGet(baseUrl + "/file/v1/" + pool.getGroup() + "/download/" + fileName);
+		try (CloseableHttpResponse response = client.execute(get)) {
+			long bytes = 0;
+			if (response.getEntity() != null) {
+				byte[] buffer = new byte[65536];
+				try (InputStream in = response.getEntity().getContent()) {
+					for (int n; (n = in.read(buffer)) >= 0;) {
+						bytes += n;
+					}
+				}
+			}
+			return response.getStatusLine().getStatusCode() == HttpStatus.SC_OK ? bytes : -1;
+		}
+	}
+
+	/**
+	 * 将随机的零时文件移动到随机的业务分组
+	 *
+	 * @return 成功时返回0，失败时返回-1
+	 */
+	private long switchGroup() throws IOException {
+		String fileName = tmpPool.take();
+		if (fileName == null) {
+			return -1;
+		}
+		FilePool target = groupPools.get(ThreadLocalRandom.current().nextInt(groupPools.size()));
+		HttpPost post = new HttpPost(baseUrl + "/file/switchgroup?targetGroup=" + target.getGroup());
+		post.setEntity(toJson(fileName, FileService.DEFAULT_GROUP));
+		if (executeJson(post) == null) {
+			return -1;
+		}
+		target.add(fileName);
+		return 0;
+	}
+
+	/**
+	 * 删除随机业务分组中的随机文件
+	 *
+	 * @return 成功时返回0，失败时返回-1
+	 */
+	private long delete() throws IOException {
+		FilePool pool = groupPools.get(ThreadLocalRandom.current().nextInt(groupPools.size()));
+		String fileName = pool.take();
+		if (fileName == null) {
+			return -1;
+		}
+		HttpPost post = new HttpPost(baseUrl + "/file/delete");
+		post.setEntity(toJson(fileName, pool.getGroup()));
+		return executeJson(post) == null ? -1 : 0;
+	}
+
+	private StringEntity toJson(String fileName, String group) throws IOException {
+		FileInfo fileInfo = new FileInfo();
+		fileInfo.setFileName(fileName);
+		fileInfo.setGroup(group);
+		return new StringEntity(mapper.writeValueAsString(fileInfo), ContentType.APPLICATION_JSON);
+	}
+
+	/**
+	 * 发起请求并解析AjaxResult
+	 *
+	 * @return 响应内容，请求失败或success为false时返回null
+	 */
+	private JsonNode executeJson(HttpUriRequest request) throws IOException {
+		try (CloseableHttpResponse response = client.execute(request)) {
+			String body = response.getEntity() == null ? "" : EntityUtils.toString(response.getEntity());
+			if (response.getStatusLine().getStatusCode() != HttpStatus.SC_OK) {
+				logger.debug("{} returned {}", request.getURI(), response.getStatusLine());
+				return null;
+			}
+			JsonNode result = mapper.readTree(body);
+			if (!result.path("success").asBoolean()) {
+				logger.debug("{} failed: {}", request.getURI(), body);
+				return null;
+			}
+			return result;
+		}
+	}
+
+	private static Map<String, EndpointStats> newStats() {
+		Map<String, EndpointStats> map = new LinkedHashMap<>();
+		for (String operation : OPERATIONS) {
+			map.put(operation, new EndpointStats());
+		}
+		return map;
+	}
+
+	/**
+	 * 一个接口的统计：成功请求的耗时直方图、成功和失败的请求数、传输的字节数
+	 */
+	public static class EndpointStats {
+		private final LatencyHistogram histogram = new LatencyHistogram();
+		private final LongAdder errors = new LongAdder();
+		private final LongAdder bytes = new LongAdder();
+
+		void record(long nanos, long bytes) {
+			if (bytes < 0) {
+				errors.increment();
+			} else {
+				histogram.record(nanos);
+				this.bytes.add(bytes);
+			}
+		}
+
+		public LatencyHistogram getHistogram() {
+			return histogram;
+		}
+
+		public long getCount() {
+			return histogram.getCount();
+		}
+
+		public long getErrors() {
+			return errors.sum();
+		}
+
+		public long getBytes() {
+			return bytes.sum();
+		}
+	}
+}
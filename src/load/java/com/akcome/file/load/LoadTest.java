@@ -0,0 +1,228 @@
+package com.akcome.file.load;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.stream.IntStream;
+
+import org.apache.commons.io.FileUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.SpringApplication;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.boot.context.embedded.EmbeddedWebApplicationContext;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.core.env.Environment;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import com.akcome.Application;
+import com.akcome.file.config.FileConfigDao;
+import com.akcome.file.config.FileConfigEntity;
+import com.akcome.file.config.FileConfigIndex;
+import com.akcome.file.config.FileConfigService;
+import com.akcome.file.srv.FileService;
+import com.akcome.file.srv.LatencyHistogram;
+import com.akcome.file.srv.TransferMetrics;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+
+/**
+ * 端到端压力测试：以load profile启动完整的服务（H2代替MySQL，不连接eureka、配置中心、RabbitMQ和Redis），
+ * 在各分组中生成文件后，通过HTTP发起混合的上传、下载、移动分组和删除请求，
+ * 输出各接口的吞吐量和p50/p99/p999耗时，以及服务端/metrics中的传输指标。
+ * 运行：mvn -Pdev,load test-compile exec:exec -Dload.args="load.concurrency=64 load.duration=120"，
+ * 参数可以省略spring命令行参数前缀的两个横线（maven的注释和参数中不便使用）
+ */
+public final class LoadTest {
+	private static final Logger logger = LoggerFactory.getLogger(LoadTest.class);
+	private static final String GROUP_PREFIX = "load-";
+	private static final long MAX_SIZE = 1L << 30;
+	private final ConfigurableApplicationContext context;
+	private final Environment env;
+
+	private LoadTest(ConfigurableApplicationContext context) {
+		this.context = context;
+		this.env = context.getEnvironment();
+	}
+
+	public static void main(String[] args) throws Exception {
+		// 不从配置中心加载配置，不使用devtools的重启
+		System.setProperty("spring.cloud.bootstrap.enabled", "false");
+		System.setProperty("spring.devtools.restart.enabled", "false");
+		// 每次都从空的文件夹开始，与application-load.yml中的路径一致
+		FileUtils.deleteQuietly(new File(System.getProperty("user.dir"), "target/load-test"));
+		SpringApplication application = new SpringApplication(Application.class);
+		application.setAdditionalProfiles("load");
+		ConfigurableApplicationContext context = application.run(toOptionArgs(args));
+		int status = 0;
+		try {
+			new LoadTest(context).run();
+		} catch (Exception e) {
+			logger.error("load test failed", e);
+			status = 1;
+		} finally {
+			context.close();
+		}
+		System.exit(status);
+	}
+
+	private static String[] toOptionArgs(String[] args) {
+		String[] optionArgs = new String[args.length];
+		for (int i = 0; i < args.length; i++) {
+			optionArgs[i] = args[i].startsWith("--") || !args[i].contains("=") ? args[i] : "--" + args[i];
+		}
+		return optionArgs;
+	}
+
+	private void run() throws Exception {
+		new File(env.getProperty("spring.http.multipart.location")).mkdirs();
+		int groupCount = env.getProperty("load.groups", Integer.class, 4);
+		int filesPerGroup = env.getProperty("load.files-per-group", Integer.class, 1000);
+		int[] fileSizes = env.getProperty("load.file-sizes", int[].class, new int[] { 65536 });
+		int concurrency = env.getProperty("load.concurrency", Integer.class, 32);
+		int rate = env.getProperty("load.rate", Integer.class, 0);
+		int warmup = env.getProperty("load.warmup", Integer.class, 10);
+		int duration = env.getProperty("load.duration", Integer.class, 60);
+		Map<String, Integer> mix = new LinkedHashMap<>();
+		mix.put(LoadDriver.UPLOAD, env.getProperty("load.mix.upload", Integer.class, 20));
+		mix.put(LoadDriver.DOWNLOAD, env.getProperty("load.mix.download", Integer.class, 70));
+		mix.put(LoadDriver.SWITCH, env.getProperty("load.mix.switch", Integer.class, 5));
+		mix.put(LoadDriver.DELETE, env.getProperty("load.mix.delete", Integer.class, 5));
+
+		List<String> groups = new ArrayList<>();
+		for (int i = 0; i < groupCount; i++) {
+			groups.add(GROUP_PREFIX + i);
+		}
+		createConfigs(groups);
+		List<byte[]> payloads = new ArrayList<>();
+		for (int size : fileSizes) {
+			byte[] payload = new byte[size];
+			ThreadLocalRandom.current().nextBytes(payload);
+			payloads.add(payload);
+		}
+		FilePool tmpPool = new FilePool(FileService.DEFAULT_GROUP);
+		List<FilePool> groupPools = new ArrayList<>();
+		for (String group : groups) {
+			groupPools.add(new FilePool(group));
+		}
+		long start = System.currentTimeMillis();
+		populate(tmpPool, filesPerGroup, payloads);
+		for (FilePool pool : groupPools) {
+			populate(pool, filesPerGroup, payloads);
+		}
+		logger.info("generated {} files in {} groups in {} ms", filesPerGroup * (groupCount + 1), groupCount + 1,
+				System.currentTimeMillis() - start);
+
+		int port = ((EmbeddedWebApplicationContext) context).getEmbeddedServletContainer().getPort();
+		String baseUrl = "http://127.0.0.1:" + port + env.getProperty("server.context-path", "");
+		LoadDriver driver = new LoadDriver(baseUrl, concurrency, tmpPool, groupPools, payloads, mix);
+		Map<String, LoadDriver.EndpointStats> stats;
+		try {
+			logger.info("start {} load test on {}: concurrency={}, rate={}, warmup={}s, duration={}s, mix={}",
+					rate > 0 ? "open-loop" : "closed-loop", baseUrl, concurrency, rate, warmup, duration, mix);
+			stats = rate > 0 ? driver.runOpenLoop(rate, concurrency, warmup, duration)
+					: driver.runClosedLoop(concurrency, warmup, duration);
+		} finally {
+			driver.close();
+		}
+		report(stats, duration);
+	}
+
+	/**
+	 * 在配置表中写入tmp分组和各业务分组的默认配置，并立即加载
+	 */
+	private void createConfigs(List<String> groups) {
+		FileConfigDao dao = context.getBean(FileConfigDao.class);
+		List<String> appIds = new ArrayList<>(groups);
+		appIds.add(FileService.DEFAULT_GROUP);
+		Date now = new Date();
+		context.getBean(TransactionTemplate.class).execute(status -> {
+			for (String appId : appIds) {
+				FileConfigEntity entity = new FileConfigEntity();
+				entity.setAppId(appId);
+				entity.setFunc(FileConfigIndex.DEFAULT_FUNC);
+				entity.setPath(appId);
+				entity.setTimeout(FileService.DEFAULT_GROUP.equals(appId)
+						? env.getProperty("load.tmp-timeout", Integer.class, 60) : null);
+				entity.setMaxSize(MAX_SIZE);
+				entity.setMaxTotalSize(MAX_SIZE);
+				entity.setValidateUser(false);
+				entity.setShardLevels(env.getProperty("load.shard-levels", Integer.class, 0));
+				entity.setUpdateTime(now);
+				dao.save(entity);
+			}
+			return null;
+		});
+		context.getBean(FileConfigService.class).reloadChanged();
+	}
+
+	/**
+	 * 直接通过FileService在分组中生成文件
+	 */
+	private void populate(FilePool pool, int count, List<byte[]> payloads) {
+		FileService fileService = context.getBean(FileService.class);
+		IntStream.range(0, count).parallel().forEach(i -> {
+			byte[] payload = payloads.get(i % payloads.size());
+			try {
+				pool.add(fileService.storeFile(new ByteArrayInputStream(payload), "load.bin", pool.getGroup()));
+			} catch (Exception e) {
+				throw new IllegalStateException("failed to generate file in group:" + pool.getGroup(), e);
+			}
+		});
+	}
+
+	private void report(Map<String, LoadDriver.EndpointStats> stats, int duration) throws Exception {
+		Map<String, Object> endpoints = new LinkedHashMap<>();
+		StringBuilder table = new StringBuilder(String.format("%n%-10s %10s %8s %10s %10s %10s %10s %10s %10s %12s%n",
+				"endpoint", "ok", "errors", "req/s", "mean(ms)", "p50(ms)", "p99(ms)", "p999(ms)", "max(ms)", "MB/s"));
+		stats.forEach((name, s) -> {
+			LatencyHistogram histogram = s.getHistogram();
+			Map<String, Object> result = new LinkedHashMap<>();
+			result.put("count", s.getCount());
+			result.put("errors", s.getErrors());
+			result.put("throughput", (double) s.getCount() / duration);
+			result.put("mean", histogram.getMean());
+			result.put("p50", histogram.getPercentile(50));
+			result.put("p99", histogram.getPercentile(99));
+			result.put("p999", histogram.getPercentile(99.9));
+			result.put("max", histogram.getMax());
+			result.put("bytesPerSecond", (double) s.getBytes() / duration);
+			endpoints.put(name, result);
+			table.append(String.format("%-10s %10d %8d %10.1f %10.2f %10.2f %10.2f %10.2f %10.2f %12.2f%n", name,
+					s.getCount(), s.getErrors(), result.get("throughput"), result.get("mean"), result.get("p50"),
+					result.get("p99"), result.get("p999"), result.get("max"),
+					(double) s.getBytes() / duration / 1024 / 1024));
+		});
+		// 服务端记录的各阶段耗时，用于定位瓶颈
+		Map<String, Object> server = new LinkedHashMap<>();
+		for (Metric<?> metric : context.getBean(TransferMetrics.class).metrics()) {
+			server.put(metric.getName(), metric.getValue());
+		}
+		Map<String, Object> result = new LinkedHashMap<>();
+		result.put("settings", getSettings());
+		result.put("endpoints", endpoints);
+		result.put("server", server);
+		File resultFile = new File(env.getProperty("load.result", "target/load-result.json"));
+		new ObjectMapper().enable(SerializationFeature.INDENT_OUTPUT).writeValue(resultFile, result);
+		// com.akcome.file的日志只写入日志文件，结果同时输出到控制台
+		logger.info("load test finished, result saved to {}{}", resultFile.getAbsolutePath(), table);
+		System.out.println("load test result saved to " + resultFile.getAbsolutePath() + table);
+	}
+
+	private Map<String, Object> getSettings() {
+		Map<String, Object> settings = new LinkedHashMap<>();
+		for (String key : new String[] { "groups", "files-per-group", "file-sizes", "shard-levels", "mix.upload",
+				"mix.download", "mix.switch", "mix.delete", "concurrency", "rate", "warmup", "duration" }) {
+			settings.put(key, env.getProperty("load." + key));
+		}
+		for (String key : new String[] { "fs.upload.streaming", "fs.download.async", "fs.cache.enabled" }) {
+			settings.put(key, env.getProperty(key));
+		}
+		return settings;
+	}
+}
@@ -12,11 +12,16 @@ import javax.servlet.http.Cookie;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 import org.springframework.util.StringUtils;
 
+import com.akcome.file.srv.AkcomeMultipartResolver;
+
 @Component
 public class SessionFilter implements Filter {
+	@Autowired
+	private AkcomeMultipartResolver multipartResolver;
 
 	@Override
 	public void destroy() {
@@ -33,7 +38,9 @@ public class SessionFilter implements Filter {
 			HttpServletResponse httpResponse = (HttpServletResponse) res;
 			String token = httpRequest.getHeader("token");
 			if (StringUtils.isEmpty(token)) {
-				token = httpRequest.getParameter("token");
+				// 流式上传时不能读取请求体中的参数
+				token = multipartResolver.isStreamingUpload(httpRequest)
+						? multipartResolver.getQueryParameter(httpRequest, "token") : httpRequest.getParameter("token");
 			}
 
 			if (StringUtils.hasText(token)) {
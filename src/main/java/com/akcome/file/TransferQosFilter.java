@@ -0,0 +1,147 @@
+package com.akcome.file;
+
+import java.io.IOException;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Component;
+
+import com.akcome.file.srv.FileDownloader;
+import com.akcome.file.srv.TransferLimiter;
+import com.akcome.file.srv.TransferMetrics;
+
+/**
+ * 按分组限制同时进行的上传和下载数，超过限制时返回429及Retry-After；异步输出的下载在输出结束后才归还名额。
+ * 同时记录正在进行的传输数和传输总耗时，交给sendfile输出的下载单独记录（见TransferMetrics）。打包下载的分组在请求体中，由FileController获取各分组的名额
+ */
+@Component
+public class TransferQosFilter implements Filter {
+	private static final Pattern TRANSFER_PATH = Pattern
+			.compile("^/file/v\\d+/([^/]+)/(upload|batchupload|instantupload|download/.+|thumbnail/.+|chunk/[^/]+/\\d+)$");
+	private static final String THUMBNAIL = "thumbnail";
+	private final Logger logger = LoggerFactory.getLogger(getClass());
+	@Autowired
+	private TransferLimiter transferLimiter;
+	@Autowired
+	private TransferMetrics transferMetrics;
+	@Value("${fs.qos.retry-after:1}")
+	private int retryAfter;
+
+	@Override
+	public void doFilter(ServletRequest req, ServletResponse res, FilterChain chain)
+			throws IOException, ServletException {
+		HttpServletRequest httpRequest = (HttpServletRequest) req;
+		String path = httpRequest.getRequestURI().substring(httpRequest.getContextPath().length());
+		Matcher matcher = TRANSFER_PATH.matcher(path);
+		if (!matcher.matches()) {
+			chain.doFilter(req, res);
+			return;
+		}
+		String group = matcher.group(1);
+		TransferLimiter.Permit permit;
+		try {
+			permit = transferLimiter.acquire(group);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new ServletException("interrupted while waiting for transfer permit", e);
+		}
+		if (permit == null) {
+			logger.warn("too many transfers in group:{}, reject {}", group, path);
+			HttpServletResponse httpResponse = (HttpServletResponse) res;
+			httpResponse.setStatus(HttpStatus.TOO_MANY_REQUESTS.value());
+			httpResponse.setHeader(HttpHeaders.RETRY_AFTER, String.valueOf(retryAfter));
+			return;
+		}
+		String type = matcher.group(2).startsWith(TransferMetrics.DOWNLOAD)
+				|| matcher.group(2).startsWith(THUMBNAIL) ? TransferMetrics.DOWNLOAD : TransferMetrics.UPLOAD;
+		Transfer transfer = new Transfer(permit, type, transferMetrics.begin(type));
+		boolean async = false;
+		try {
+			chain.doFilter(req, res);
+			if (httpRequest.isAsyncStarted()) {
+				httpRequest.getAsyncContext().addListener(transfer);
+				async = true;
+			}
+		} finally {
+			if (!async) {
+				transfer.end(FileDownloader.isSendfile(httpRequest));
+			}
+		}
+	}
+
+	@Override
+	public void init(FilterConfig filterConfig) throws ServletException {
+
+	}
+
+	@Override
+	public void destroy() {
+
+	}
+
+	/**
+	 * 一次传输，结束时归还名额并记录耗时
+	 */
+	private class Transfer implements AsyncListener {
+		private final TransferLimiter.Permit permit;
+		private final String type;
+		private final long startNanos;
+		private boolean ended;
+
+		Transfer(TransferLimiter.Permit permit, String type, long startNanos) {
+			this.permit = permit;
+			this.type = type;
+			this.startNanos = startNanos;
+		}
+
+		/**
+		 * @param sendfile
+		 *            响应已交给sendfile输出，实际传输尚未开始
+		 */
+		synchronized void end(boolean sendfile) {
+			if (!ended) {
+				ended = true;
+				permit.release();
+				if (sendfile) {
+					transferMetrics.endSendfile(startNanos);
+				} else {
+					transferMetrics.end(type, startNanos);
+				}
+			}
+		}
+
+		@Override
+		public void onComplete(AsyncEvent event) {
+			end(false);
+		}
+
+		@Override
+		public void onTimeout(AsyncEvent event) {
+		}
+
+		@Override
+		public void onError(AsyncEvent event) {
+		}
+
+		@Override
+		public void onStartAsync(AsyncEvent event) {
+		}
+	}
+}
@@ -1,6 +1,9 @@
 package com.akcome.file.client;
 
+import java.util.List;
+
 import org.springframework.cloud.netflix.feign.FeignClient;
+import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestMethod;
 import org.springframework.web.bind.annotation.RequestParam;
@@ -17,4 +20,16 @@ public interface FileClientService {
 	@RequestMapping(value = "/file/switchgroup", method = RequestMethod.POST)
 	public AjaxResult<?> switchFileGroup(FileInfo fileInfo, @RequestParam(value = "targetGroup") String targetGroup);
 
+	@RequestMapping(value = "/file/batchdelete", method = RequestMethod.POST)
+	public AjaxResult<List<FileResult>> deleteFiles(List<FileInfo> fileInfos);
+
+	@RequestMapping(value = "/file/batchswitchgroup", method = RequestMethod.POST)
+	public AjaxResult<List<FileResult>> switchFileGroups(List<FileInfo> fileInfos,
+			@RequestParam(value = "targetGroup") String targetGroup);
+
+	@RequestMapping(value = "/file/v1/{group}/list", method = RequestMethod.GET)
+	public AjaxResult<FileListPage> listFiles(@PathVariable(value = "group") String group,
+			@RequestParam(value = "cursor", required = false) String cursor,
+			@RequestParam(value = "limit") int limit);
+
 }
@@ -0,0 +1,16 @@
+package com.akcome.file.client;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import lombok.Data;
+
+/**
+ * 文件列表的一页，按路径排序
+ */
+@Data
+public class FileListPage {
+	private List<FileStat> files = new ArrayList<>();
+	/** 下一页的游标（本页最后检查的路径），没有更多文件时为空 */
+	private String nextCursor;
+}
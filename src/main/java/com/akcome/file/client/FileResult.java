@@ -0,0 +1,28 @@
+package com.akcome.file.client;
+
+import lombok.Data;
+
+/**
+ * 批量操作中单个文件的处理结果
+ */
+@Data
+public class FileResult {
+	private String group;
+	/** 文件保存在硬盘中的文件名 */
+	private String fileName;
+	/** 原始文件名 */
+	private String orgFileName;
+	/** 文件下载路径，仅上传时返回 */
+	private String url;
+	private boolean success;
+	private String msg;
+
+	public FileResult() {
+	}
+
+	public FileResult(String group, String fileName, String orgFileName) {
+		this.group = group;
+		this.fileName = fileName;
+		this.orgFileName = orgFileName;
+	}
+}
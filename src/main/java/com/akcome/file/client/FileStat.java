@@ -0,0 +1,27 @@
+package com.akcome.file.client;
+
+import lombok.Data;
+
+/**
+ * 分组中单个文件的信息，用于文件列表
+ */
+@Data
+public class FileStat {
+	/** 文件保存在硬盘中的文件名 */
+	private String fileName;
+	/** 相对于分组文件夹的路径（包括分桶文件夹），以/分隔 */
+	private String path;
+	private long size;
+	/** 修改时间（毫秒） */
+	private long lastModified;
+
+	public FileStat() {
+	}
+
+	public FileStat(String fileName, String path, long size, long lastModified) {
+		this.fileName = fileName;
+		this.path = path;
+		this.size = size;
+		this.lastModified = lastModified;
+	}
+}
@@ -1,5 +1,9 @@
 package com.akcome.file.config;
 
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+
 import org.springframework.stereotype.Component;
 
 import com.akcome.file.common.AbstractDao;
@@ -7,4 +11,36 @@ import com.akcome.file.common.AbstractDao;
 @Component
 public class FileConfigDao extends AbstractDao<FileConfigEntity> {
 
+	/**
+	 * 获取配置的总数、id之和和最大修改时间，用于判断配置是否有变化；不使用查询缓存
+	 * 
+	 * @return [总数, id之和, 最大修改时间]
+	 */
+	public Object[] getVersion() {
+		return (Object[]) getCurrentSession()
+				.createQuery("select count(*), sum(id), max(updateTime) from " + FileConfigEntity.class.getName())
+				.uniqueResult();
+	}
+
+	/**
+	 * 获取修改时间晚于指定时间的配置，以及修改时间等于指定时间但尚未加载的配置；不使用查询缓存
+	 * 
+	 * @param time
+	 *            修改时间
+	 * @param loadedIds
+	 *            修改时间等于指定时间且已加载的配置id
+	 * @return 配置列表
+	 */
+	@SuppressWarnings("unchecked")
+	public List<FileConfigEntity> getUpdatedSince(Date time, Collection<Long> loadedIds) {
+		if (loadedIds.isEmpty()) {
+			return getCurrentSession()
+					.createQuery("from " + FileConfigEntity.class.getName() + " where updateTime >= :time")
+					.setParameter("time", time).setReadOnly(true).list();
+		}
+		return getCurrentSession()
+				.createQuery("from " + FileConfigEntity.class.getName()
+						+ " where updateTime > :time or (updateTime = :time and id not in (:ids))")
+				.setParameter("time", time).setParameterList("ids", loadedIds).setReadOnly(true).list();
+	}
 }
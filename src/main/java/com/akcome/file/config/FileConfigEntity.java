@@ -1,11 +1,15 @@
 package com.akcome.file.config;
 
+import java.util.Date;
+
 import javax.persistence.Column;
 import javax.persistence.Entity;
 import javax.persistence.GeneratedValue;
 import javax.persistence.GenerationType;
 import javax.persistence.Id;
 import javax.persistence.Table;
+import javax.persistence.Temporal;
+import javax.persistence.TemporalType;
 
 import lombok.Data;
 
@@ -24,4 +28,17 @@ public class FileConfigEntity {
 	private Long maxTotalSize;
 	private Integer timeout;
 	private Boolean validateUser;
+	private Integer cacheMaxAge;
+	private Long chunkSize;
+	private Integer chunkTimeout;
+	private Boolean dedup;
+	private Integer shardLevels;
+	private Long maxBandwidth;
+	private Integer maxConcurrency;
+	private String compressTypes;
+	private Long quotaSize;
+	private Long quotaFiles;
+	/** 最后修改时间，由数据库在插入和更新时维护，用于增量加载配置 */
+	@Temporal(TemporalType.TIMESTAMP)
+	private Date updateTime;
 }
@@ -0,0 +1,92 @@
+package com.akcome.file.config;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 文件配置的只读索引：应用标识 -> 配置名 -> 配置信息，创建后不再修改，每个应用的默认配置在创建时确定。
+ * 查询不加锁也不创建新对象，配置变化时整体替换为新的索引
+ */
+public final class FileConfigIndex {
+	public static final String DEFAULT_FUNC = "default";
+	public static final FileConfigIndex EMPTY = new FileConfigIndex(Collections.emptyMap());
+	private final Map<String, List<FileConfigInfo>> configLists;
+	private final Map<String, Map<String, FileConfigInfo>> configMaps;
+	private final Map<String, FileConfigInfo> defaultConfigs;
+
+	/**
+	 * @param configMap
+	 *            key为应用标识，value为该应用的所有配置信息
+	 */
+	public FileConfigIndex(Map<String, List<FileConfigInfo>> configMap) {
+		Map<String, List<FileConfigInfo>> lists = new HashMap<>();
+		Map<String, Map<String, FileConfigInfo>> maps = new HashMap<>();
+		Map<String, FileConfigInfo> defaults = new HashMap<>();
+		configMap.forEach((appId, configs) -> {
+			Map<String, FileConfigInfo> funcs = new HashMap<>();
+			for (FileConfigInfo config : configs) {
+				funcs.put(config.getFunc(), config);
+			}
+			lists.put(appId, Collections.unmodifiableList(new ArrayList<>(configs)));
+			maps.put(appId, Collections.unmodifiableMap(funcs));
+			if (funcs.containsKey(DEFAULT_FUNC)) {
+				defaults.put(appId, funcs.get(DEFAULT_FUNC));
+			}
+		});
+		this.configLists = lists;
+		this.configMaps = maps;
+		this.defaultConfigs = defaults;
+	}
+
+	/**
+	 * 获取应用的目标配置，配置名为空或不存在时返回默认配置
+	 *
+	 * @param appId
+	 *            应用标识
+	 * @param func
+	 *            配置名
+	 * @return 配置信息，应用不存在或没有默认配置时返回null
+	 */
+	public FileConfigInfo getConfig(String appId, String func) {
+		if (appId == null) {
+			return null;
+		}
+		if (func != null) {
+			Map<String, FileConfigInfo> funcs = configMaps.get(appId);
+			FileConfigInfo config = funcs == null ? null : funcs.get(func);
+			if (config != null) {
+				return config;
+			}
+		}
+		return defaultConfigs.get(appId);
+	}
+
+	/**
+	 * 获取应用的所有配置信息，key为配置名
+	 *
+	 * @param appId
+	 *            应用标识
+	 * @return 只读的配置信息集合，应用不存在时返回null
+	 */
+	public Map<String, FileConfigInfo> getConfigMap(String appId) {
+		return appId == null ? null : configMaps.get(appId);
+	}
+
+	/**
+	 * 获取应用的所有配置信息
+	 *
+	 * @param appId
+	 *            应用标识
+	 * @return 只读的配置信息列表，应用不存在时返回null
+	 */
+	public List<FileConfigInfo> getConfigList(String appId) {
+		return appId == null ? null : configLists.get(appId);
+	}
+
+	public List<String> getAppIds() {
+		return new ArrayList<>(configMaps.keySet());
+	}
+}
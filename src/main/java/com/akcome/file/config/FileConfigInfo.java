@@ -10,6 +10,26 @@ public class FileConfigInfo {
 	private Long maxTotalSize;
 	private Integer timeout;
 	private Boolean validateUser;
+	/** 下载响应Cache-Control的max-age，单位秒，为空或不大于0时不允许缓存 */
+	private Integer cacheMaxAge;
+	/** 分片上传的分片大小，单位字节 */
+	private Long chunkSize;
+	/** 分片上传会话的超时时间（自最后一次上传分片起），单位分钟 */
+	private Integer chunkTimeout;
+	/** 是否按内容（SHA-256）去重保存，相同内容只保存一份 */
+	private Boolean dedup;
+	/** 分桶级数，每级256个子文件夹，为空或0时所有文件直接保存在分组文件夹中 */
+	private Integer shardLevels;
+	/** 分组上传和下载的总带宽，单位字节/秒，为空或不大于0时不限制 */
+	private Long maxBandwidth;
+	/** 分组同时进行的上传和下载数，为空或不大于0时不限制 */
+	private Integer maxConcurrency;
+	/** 下载时gzip压缩的文件类型，逗号分隔的MIME类型（支持text/*）或文件后缀，为空时不压缩 */
+	private String compressTypes;
+	/** 分组最多保存的总字节数，只在默认配置中设置，为空或不大于0时不限制 */
+	private Long quotaSize;
+	/** 分组最多保存的文件数，只在默认配置中设置，为空或不大于0时不限制 */
+	private Long quotaFiles;
 
 	public FileConfigInfo() {
 	}
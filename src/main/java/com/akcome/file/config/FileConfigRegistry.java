@@ -0,0 +1,26 @@
+package com.akcome.file.config;
+
+import org.springframework.stereotype.Component;
+
+/**
+ * 发布当前的文件配置索引。FileConfigService的方法都经过事务和缓存代理，
+ * 上传下载等频繁查询配置的地方直接从这里读取索引
+ */
+@Component
+public class FileConfigRegistry {
+	private volatile FileConfigIndex index = FileConfigIndex.EMPTY;
+
+	public FileConfigIndex getIndex() {
+		return index;
+	}
+
+	/**
+	 * 整体替换配置索引，正在进行的查询继续使用旧的索引
+	 * 
+	 * @param index
+	 *            新的配置索引
+	 */
+	public void publish(FileConfigIndex index) {
+		this.index = index;
+	}
+}
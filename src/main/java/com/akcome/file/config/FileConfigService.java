@@ -1,15 +1,27 @@
 package com.akcome.file.config;
 
+import java.util.Comparator;
+import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
 import java.util.stream.Collectors;
 
 import javax.annotation.PostConstruct;
 import javax.transaction.Transactional;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.cache.Cache;
+import org.springframework.cache.CacheManager;
 import org.springframework.cache.annotation.Cacheable;
+import org.springframework.cloud.context.scope.refresh.RefreshScopeRefreshedEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.TransactionStatus;
 import org.springframework.transaction.support.TransactionCallbackWithoutResult;
@@ -18,43 +30,183 @@ import org.springframework.transaction.support.TransactionTemplate;
 @Transactional
 @Service
 public class FileConfigService {
+	private static final String CACHE_NAME = "fileConfigCache";
+	private final Logger logger = LoggerFactory.getLogger(getClass());
 	@Autowired
 	private TransactionTemplate transactionTemplate;
 	@Autowired
 	private FileConfigDao dao;
-	private Map<String, List<FileConfigInfo>> configMap;
+	@Autowired
+	private FileConfigRegistry registry;
+	@Autowired
+	private CacheManager cacheManager;
+	/** 已加载的配置，key为配置id */
+	private Map<Long, FileConfigEntity> rows = new HashMap<>();
+	/** 已加载配置的id之和，与总数一起判断是否有配置被新增或删除 */
+	private long idSum;
+	/** 已加载配置的最大修改时间 */
+	private Date lastUpdateTime;
+	/** 修改时间等于lastUpdateTime的已加载配置id，下次增量查询时跳过 */
+	private Set<Long> lastUpdateIds = new HashSet<>();
 
 	@PostConstruct
 	public void init() {
+		reload(true);
+	}
+
+	/**
+	 * 定时检查配置表，只加载上次加载之后修改的配置；配置总数或id之和变化（新增或删除）时全量加载
+	 */
+	@Scheduled(fixedDelayString = "${fs.config.reload-interval:30000}")
+	public void reloadChanged() {
+		try {
+			reload(false);
+		} catch (Exception e) {
+			logger.warn("failed to reload file configs", e);
+		}
+	}
+
+	/**
+	 * 收到刷新通知（/refresh或spring cloud bus的/bus/refresh）时全量加载
+	 */
+	@EventListener(RefreshScopeRefreshedEvent.class)
+	public void onRefresh() {
+		try {
+			reload(true);
+		} catch (Exception e) {
+			logger.warn("failed to reload file configs", e);
+		}
+	}
+
+	private synchronized void reload(boolean full) {
 		transactionTemplate.execute(new TransactionCallbackWithoutResult() {
 			@Override
 			protected void doInTransactionWithoutResult(TransactionStatus status) {
-				loadFromDB();
+				loadFromDB(full);
 			}
 		});
 	}
 
-	private void loadFromDB() {
+	private void loadFromDB(boolean full) {
+		Object[] version = dao.getVersion();
+		long count = ((Number) version[0]).longValue();
+		long newIdSum = version[1] == null ? 0 : ((Number) version[1]).longValue();
+		Date maxUpdateTime = (Date) version[2];
+		Map<Long, FileConfigEntity> newRows;
+		// 删除一条同时新增一条时总数不变，id自增不会重复使用，id之和一定变化
+		if (full || count != rows.size() || newIdSum != idSum
+				|| (maxUpdateTime != null && lastUpdateTime == null)) {
+			newRows = new HashMap<>();
+			for (Object r : dao.findAll(FileConfigEntity.class)) {
+				FileConfigEntity entity = (FileConfigEntity) r;
+				newRows.put(entity.getId(), entity);
+			}
+		} else if (maxUpdateTime != null && !maxUpdateTime.before(lastUpdateTime)) {
+			// 上次加载后可能还有修改时间相同的配置，从上次的最大修改时间开始（包含）查询，跳过该时间已加载的配置
+			List<FileConfigEntity> updated = dao.getUpdatedSince(lastUpdateTime, lastUpdateIds);
+			if (updated.isEmpty()) {
+				return;
+			}
+			newRows = new HashMap<>(rows);
+			for (FileConfigEntity entity : updated) {
+				newRows.put(entity.getId(), entity);
+			}
+		} else {
+			return;
+		}
+		Set<String> changedAppIds = getChangedAppIds(rows, newRows);
+		rows = newRows;
+		idSum = newIdSum;
+		lastUpdateTime = maxUpdateTime;
+		lastUpdateIds = getIdsUpdatedAt(newRows, maxUpdateTime);
+		if (changedAppIds.isEmpty()) {
+			return;
+		}
+		// 先替换索引再清除缓存，正在进行的上传下载继续使用旧的索引
 		Map<String, List<FileConfigInfo>> map = new HashMap<>();
-		List<FileConfigEntity> list = dao.getAll();
-		if (list != null) {
-			list.stream().collect(Collectors.groupingBy(FileConfigEntity::getAppId)).forEach((k, v) -> {
-				map.put(k,
-						v.stream()
-								.map(r -> new FileConfigInfo(r.getFunc(), r.getPath(), r.getMaxSize(),
-										r.getMaxTotalSize(), r.getTimeout(), r.getValidateUser()))
-								.collect(Collectors.toList()));
-			});
+		newRows.values().stream().sorted(Comparator.comparing(FileConfigEntity::getId))
+				.collect(Collectors.groupingBy(FileConfigEntity::getAppId)).forEach((k, v) -> {
+					map.put(k, v.stream().map(FileConfigService::toConfigInfo).collect(Collectors.toList()));
+				});
+		registry.publish(new FileConfigIndex(map));
+		Cache cache = cacheManager.getCache(CACHE_NAME);
+		if (cache != null) {
+			for (String appId : changedAppIds) {
+				cache.evict("fileconfig_" + appId);
+			}
 		}
-		configMap = map;
+		logger.info("loaded {} file configs, changed apps:{}", newRows.size(), changedAppIds);
 	}
 
-	@Cacheable(value = "fileConfigCache", key = "'fileconfig_'+#appId")
-	public List<FileConfigInfo> getFileConfigs(String appId) {
-		if (configMap == null) {
+	private static Set<Long> getIdsUpdatedAt(Map<Long, FileConfigEntity> rows, Date time) {
+		Set<Long> ids = new HashSet<>();
+		if (time == null) {
+			return ids;
+		}
+		for (FileConfigEntity entity : rows.values()) {
+			// 实体中的修改时间可能是Timestamp，按毫秒数比较
+			if (entity.getUpdateTime() != null && entity.getUpdateTime().getTime() == time.getTime()) {
+				ids.add(entity.getId());
+			}
+		}
+		return ids;
+	}
+
+	private static Set<String> getChangedAppIds(Map<Long, FileConfigEntity> oldRows,
+			Map<Long, FileConfigEntity> newRows) {
+		Set<String> appIds = new HashSet<>();
+		Set<Long> ids = new HashSet<>(oldRows.keySet());
+		ids.addAll(newRows.keySet());
+		for (Long id : ids) {
+			FileConfigEntity oldRow = oldRows.get(id);
+			FileConfigEntity newRow = newRows.get(id);
+			if (!Objects.equals(toConfigInfo(oldRow), toConfigInfo(newRow))
+					|| !Objects.equals(getAppId(oldRow), getAppId(newRow))) {
+				if (oldRow != null) {
+					appIds.add(oldRow.getAppId());
+				}
+				if (newRow != null) {
+					appIds.add(newRow.getAppId());
+				}
+			}
+		}
+		return appIds;
+	}
+
+	private static String getAppId(FileConfigEntity r) {
+		return r == null ? null : r.getAppId();
+	}
+
+	private static FileConfigInfo toConfigInfo(FileConfigEntity r) {
+		if (r == null) {
 			return null;
-		} else {
-			return configMap.get(appId);
 		}
+		FileConfigInfo info = new FileConfigInfo(r.getFunc(), r.getPath(), r.getMaxSize(), r.getMaxTotalSize(),
+				r.getTimeout(), r.getValidateUser());
+		info.setCacheMaxAge(r.getCacheMaxAge());
+		info.setChunkSize(r.getChunkSize());
+		info.setChunkTimeout(r.getChunkTimeout());
+		info.setDedup(r.getDedup());
+		info.setShardLevels(r.getShardLevels());
+		info.setMaxBandwidth(r.getMaxBandwidth());
+		info.setMaxConcurrency(r.getMaxConcurrency());
+		info.setCompressTypes(r.getCompressTypes());
+		info.setQuotaSize(r.getQuotaSize());
+		info.setQuotaFiles(r.getQuotaFiles());
+		return info;
+	}
+
+	/**
+	 * 获取所有配置了文件存储的应用标识
+	 * 
+	 * @return 应用标识集合
+	 */
+	public List<String> getAppIds() {
+		return registry.getIndex().getAppIds();
+	}
+
+	@Cacheable(value = CACHE_NAME, key = "'fileconfig_'+#appId")
+	public List<FileConfigInfo> getFileConfigs(String appId) {
+		return registry.getIndex().getConfigList(appId);
 	}
 }
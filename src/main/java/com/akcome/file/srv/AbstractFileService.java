@@ -2,7 +2,6 @@ package com.akcome.file.srv;
 
 import java.util.List;
 import java.util.Map;
-import java.util.stream.Collectors;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -12,19 +11,27 @@ import org.springframework.stereotype.Service;
 import org.springframework.util.StringUtils;
 
 import com.akcome.file.config.FileConfigInfo;
-import com.akcome.file.config.FileConfigService;
+import com.akcome.file.config.FileConfigRegistry;
 
 @Service
 public abstract class AbstractFileService {
 	protected final Logger logger = LoggerFactory.getLogger(getClass());
-	private static final String DEFAULT_FUNC = "default";
 	@Autowired
-	private FileConfigService fileMgr;
+	private FileConfigRegistry fileConfigRegistry;
 	@Value("${fs.tmp.dir}")
 	protected String fileTmpDir;
 	@Value("${fs.dir}")
 	protected String fileDir;
 
+	/**
+	 * 获取所有配置了文件存储的应用标识
+	 * 
+	 * @return 应用标识集合
+	 */
+	public List<String> getAppIds() {
+		return fileConfigRegistry.getIndex().getAppIds();
+	}
+
 	/**
 	 * 获取目标应用的所有配置信息集合，key为配置种类，value为配置信息类FileConfigInfo
 	 * 
@@ -33,12 +40,7 @@ public abstract class AbstractFileService {
 	 * @return 目标应用的所有配置信息集合
 	 */
 	public Map<String, FileConfigInfo> getFileConfigs(String appId) {
-		List<FileConfigInfo> configs = fileMgr.getFileConfigs(appId);
-		if (configs != null) {
-			return configs.stream().collect(Collectors.toMap(FileConfigInfo::getFunc, (v) -> v));
-		} else {
-			return null;
-		}
+		return fileConfigRegistry.getIndex().getConfigMap(appId);
 	}
 
 	/**
@@ -62,18 +64,11 @@ public abstract class AbstractFileService {
 	 * @return 目标配置信息
 	 */
 	public FileConfigInfo getFileConfig(String appId, String func) {
-		Map<String, FileConfigInfo> configs = getFileConfigs(appId);
-		if (StringUtils.isEmpty(func)) {
-			func = DEFAULT_FUNC;
-		}
-		if (configs == null) {
-			logger.warn("no file configs found for app:{}, return", appId);
-			return null;
-		}
-		FileConfigInfo config = configs.get(func);
+		FileConfigInfo config = fileConfigRegistry.getIndex().getConfig(appId, func);
 		if (config == null) {
-			logger.warn("invalid func:{} use default", func);
-			config = configs.get(DEFAULT_FUNC);
+			logger.warn("no file configs found for app:{}, return", appId);
+		} else if (logger.isDebugEnabled() && !StringUtils.isEmpty(func) && !func.equals(config.getFunc())) {
+			logger.debug("invalid func:{} use default", func);
 		}
 		return config;
 	}
@@ -1,11 +1,23 @@
 package com.akcome.file.srv;
 
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.util.Arrays;
+
+import javax.annotation.PostConstruct;
+import javax.servlet.MultipartConfigElement;
 import javax.servlet.http.HttpServletRequest;
 
+import org.apache.commons.fileupload.FileItemIterator;
+import org.apache.commons.fileupload.FileUploadException;
+import org.apache.commons.fileupload.servlet.ServletFileUpload;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
+import org.springframework.util.StringUtils;
 import org.springframework.web.multipart.MaxUploadSizeExceededException;
 import org.springframework.web.multipart.MultipartException;
 import org.springframework.web.multipart.MultipartHttpServletRequest;
@@ -18,32 +30,124 @@ import com.akcome.file.config.FileConfigInfo;
 public class AkcomeMultipartResolver extends StandardServletMultipartResolver {
 	@Autowired
 	private FileService fileSrv;
+	@Autowired
+	private TransferMetrics transferMetrics;
+	@Autowired
+	private StorageQuota storageQuota;
 	private final Logger logger = LoggerFactory.getLogger(getClass());
+	@Value("${fs.upload.streaming:false}")
+	private boolean streaming;
+	@Autowired(required = false)
+	private MultipartConfigElement multipartConfig;
 
 	public AkcomeMultipartResolver() {
 		setResolveLazily(true);
 	}
 
+	@PostConstruct
+	public void init() {
+		// 容器开启multipart解析时，任何getParameter调用都会先读取并缓存整个请求体，流式解析时请求体已为空
+		if (streaming && multipartConfig != null) {
+			throw new IllegalStateException(
+					"fs.upload.streaming=true requires spring.http.multipart.enabled=false");
+		}
+	}
+
+	@Override
+	public boolean isMultipart(HttpServletRequest request) {
+		// 流式上传模式下不由容器解析multipart，原始请求直接交给FileController处理
+		if (isStreamingUpload(request)) {
+			return false;
+		}
+		return super.isMultipart(request);
+	}
+
+	/**
+	 * 判断当前请求是否需要以流式方式上传
+	 * 
+	 * @param request
+	 * @return 开启了流式上传且是文件上传请求时返回true
+	 */
+	public boolean isStreamingUpload(HttpServletRequest request) {
+		return streaming && request.getRequestURI().startsWith("/file/")
+				&& ServletFileUpload.isMultipartContent(request);
+	}
+
+	/**
+	 * 从URL的查询参数中获取参数值。流式上传时不能调用request.getParameter，否则容器会读取请求体
+	 * 
+	 * @param request
+	 * @param name
+	 *            参数名
+	 * @return 参数值，不存在时返回null
+	 */
+	public String getQueryParameter(HttpServletRequest request, String name) {
+		String query = request.getQueryString();
+		if (query == null) {
+			return null;
+		}
+		for (String pair : StringUtils.delimitedListToStringArray(query, "&")) {
+			int idx = pair.indexOf('=');
+			String key = idx > -1 ? pair.substring(0, idx) : pair;
+			if (name.equals(key)) {
+				try {
+					return idx > -1 ? URLDecoder.decode(pair.substring(idx + 1), "UTF-8") : "";
+				} catch (UnsupportedEncodingException | IllegalArgumentException e) {
+					logger.warn("invalid query parameter:{}", pair);
+					return null;
+				}
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * 流式解析multipart请求，返回的迭代器每次只读取一个part，调用方应直接将part写入目标文件。
+	 * 单个part超过maxSize或请求超过maxTotalSize时，在读取过程中抛出异常，不会等到整个请求体接收完
+	 * 
+	 * @param request
+	 * @return part迭代器
+	 * @throws MultipartException
+	 */
+	public FileItemIterator getItemIterator(HttpServletRequest request) throws MultipartException {
+		FileConfigInfo config = checkSize(request);
+		ServletFileUpload upload = new ServletFileUpload();
+		upload.setHeaderEncoding("UTF-8");
+		if (config != null) {
+			upload.setSizeMax(config.getMaxTotalSize() == null ? -1 : config.getMaxTotalSize());
+			upload.setFileSizeMax(config.getMaxSize() == null ? -1 : config.getMaxSize());
+		}
+		try {
+			return upload.getItemIterator(request);
+		} catch (FileUploadException | IOException e) {
+			throw new MultipartException("failed to parse multipart request", e);
+		}
+	}
+
 	@Override
 	public MultipartHttpServletRequest resolveMultipart(HttpServletRequest request) throws MultipartException {
 		StandardMultipartHttpServletRequest req = new StandardMultipartHttpServletRequest(request, true) {
 			@Override
 			protected void initializeMultipart() {
 				checkSize(getRequest());
+				long start = System.nanoTime();
 				super.initializeMultipart();
+				transferMetrics.recordTime(TransferMetrics.UPLOAD_PARSE, start);
 			}
 		};
 		return req;
 	}
 
-	private void checkSize(HttpServletRequest request) throws MultipartException {
+	private FileConfigInfo checkSize(HttpServletRequest request) throws MultipartException {
 		logger.debug("request method:{} and url:{}", request.getMethod(), request.getRequestURL());
 		if (request.getRequestURI().startsWith("/file/")) {
 			String appId = parseGroupFromUrl(request.getRequestURI());
 			if (request.getRequestURI().contains("/tmp/")) {
 				appId = FileService.DEFAULT_GROUP;
 			}
-			String func = request.getParameter("func");
+			// 流式上传时func只能通过URL传递
+			String func = isStreamingUpload(request) ? getQueryParameter(request, "func")
+					: request.getParameter("func");
 			FileConfigInfo config = fileSrv.getFileConfig(appId, func);
 			if (config == null) {
 				throw new MultipartException("invalid request");
@@ -53,7 +157,16 @@ public class AkcomeMultipartResolver extends StandardServletMultipartResolver {
 						func);
 				throw new MaxUploadSizeExceededException(config.getMaxTotalSize());
 			}
+			// 配额按分组的默认配置检查
+			FileConfigInfo groupConfig = StringUtils.isEmpty(func) ? config : fileSrv.getFileConfig(appId);
+			if (groupConfig != null && !storageQuota.allows(appId, groupConfig, request.getContentLengthLong())) {
+				logger.warn("upload exceed quota of appId:{}, usage:{}", appId,
+						Arrays.toString(storageQuota.getUsage(appId)));
+				throw new MultipartException("upload exceed quota of group:" + appId);
+			}
+			return config;
 		}
+		return null;
 	}
 
 	private String parseGroupFromUrl(String uri) {
@@ -61,7 +174,7 @@ public class AkcomeMultipartResolver extends StandardServletMultipartResolver {
 		if (idx > -1) {
 			uri = uri.substring(0, idx);
 		}
-		uri = uri.replaceAll("/file/", "").replaceAll("/upload", "");
+		uri = uri.replaceFirst("^/file/", "");
 		// 下面的操作是将v1或者v2等后来增加的一级路径去除
 		idx = uri.indexOf("/");
 		if (idx <= -1) {
@@ -69,6 +182,11 @@ public class AkcomeMultipartResolver extends StandardServletMultipartResolver {
 			return uri;
 		}
 		uri = uri.substring(idx + 1);
+		// 去除分组之后的upload、batchupload等路径
+		idx = uri.indexOf("/");
+		if (idx > -1) {
+			uri = uri.substring(0, idx);
+		}
 		return uri;
 	}
 }
@@ -0,0 +1,224 @@
+package com.akcome.file.srv;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Component;
+
+/**
+ * 异步（Servlet 3.1非阻塞IO）输出文件：请求线程开启异步后立即返回，
+ * 连接可写时由专用的IO线程池读取文件并写入，慢速客户端不再占用tomcat的工作线程；分组限制带宽时延后继续写入
+ */
+@Component
+public class AsyncFileWriter {
+	private final Logger logger = LoggerFactory.getLogger(getClass());
+	@Value("${fs.download.async:false}")
+	private boolean enabled;
+	@Value("${fs.download.async-threads:4}")
+	private int threads;
+	@Value("${fs.download.async-timeout:600000}")
+	private long timeout;
+	@Value("${fs.download.buffer-size:65536}")
+	private int bufferSize;
+	@Autowired
+	private TransferLimiter transferLimiter;
+	private ScheduledExecutorService ioExecutor;
+
+	@PostConstruct
+	public void init() {
+		if (enabled) {
+			ioExecutor = Executors.newScheduledThreadPool(threads, new CustomizableThreadFactory("download-io-"));
+		}
+	}
+
+	@PreDestroy
+	public void destroy() {
+		if (ioExecutor != null) {
+			ioExecutor.shutdownNow();
+		}
+	}
+
+	/**
+	 * 判断当前请求是否可以异步输出
+	 */
+	public boolean isAsync(HttpServletRequest request) {
+		return enabled && request.isAsyncSupported();
+	}
+
+	/**
+	 * 开启异步并输出文件中从position开始的length个字节，调用前需设置好响应头
+	 *
+	 * @param request
+	 * @param response
+	 * @param file
+	 *            要输出的文件
+	 * @param group
+	 *            文件分组，用于限制带宽
+	 * @param content
+	 *            已缓存的文件内容，为空时读取文件
+	 * @param position
+	 *            起始位置
+	 * @param length
+	 *            要输出的字节数
+	 * @throws IOException
+	 */
+	public void write(HttpServletRequest request, HttpServletResponse response, File file, String group,
+			ByteBuffer content, long position, long length) throws IOException {
+		AsyncContext asyncContext = request.startAsync(request, response);
+		asyncContext.setTimeout(timeout);
+		ServletOutputStream os = response.getOutputStream();
+		Transfer transfer = new Transfer(asyncContext, os, file, group, content, position, length);
+		asyncContext.addListener(transfer);
+		os.setWriteListener(transfer);
+	}
+
+	/**
+	 * 单个文件的输出过程。容器只在isReady()返回false后才再次回调onWritePossible，同一时间只有一个线程在写
+	 */
+	private class Transfer implements WriteListener, AsyncListener {
+		private final AsyncContext asyncContext;
+		private final ServletOutputStream os;
+		private final File file;
+		private final String group;
+		private final ByteBuffer content;
+		private long position;
+		private long remaining;
+		private FileChannel channel;
+		private byte[] buffer;
+		private final AtomicBoolean closed = new AtomicBoolean();
+
+		Transfer(AsyncContext asyncContext, ServletOutputStream os, File file, String group, ByteBuffer content,
+				long position, long length) {
+			this.asyncContext = asyncContext;
+			this.os = os;
+			this.file = file;
+			this.group = group;
+			this.content = content == null ? null : content.duplicate();
+			this.position = position;
+			this.remaining = length;
+		}
+
+		@Override
+		public void onWritePossible() {
+			ioExecutor.execute(this::pump);
+		}
+
+		private void pump() {
+			try {
+				while (!closed.get() && os.isReady()) {
+					if (remaining <= 0) {
+						close();
+						asyncContext.complete();
+						return;
+					}
+					int size = read();
+					if (size < 0) {
+						logger.warn("file:{} truncated while downloading, {} bytes missing", file.getName(), remaining);
+						close();
+						asyncContext.complete();
+						return;
+					}
+					os.write(buffer, 0, size);
+					position += size;
+					remaining -= size;
+					long wait = transferLimiter.reserve(group, size);
+					if (wait > 0) {
+						// 超过分组带宽，延后继续写入，不占用IO线程
+						ioExecutor.schedule(this::pump, wait, TimeUnit.NANOSECONDS);
+						return;
+					}
+				}
+			} catch (Exception e) {
+				onError(e);
+			}
+		}
+
+		private int read() throws IOException {
+			if (buffer == null) {
+				buffer = new byte[bufferSize];
+			}
+			int size = (int) Math.min(buffer.length, remaining);
+			if (content != null) {
+				content.position((int) position);
+				content.get(buffer, 0, size);
+				return size;
+			}
+			if (channel == null) {
+				channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+			}
+			return channel.read(ByteBuffer.wrap(buffer, 0, size), position);
+		}
+
+		@Override
+		public void onError(Throwable t) {
+			// 客户端中断连接时也会进入这里
+			logger.debug("failed to write file:{}", file.getName(), t);
+			if (close()) {
+				try {
+					asyncContext.complete();
+				} catch (IllegalStateException e) {
+					logger.debug("async context of file:{} already completed", file.getName());
+				}
+			}
+		}
+
+		@Override
+		public void onTimeout(AsyncEvent event) {
+			logger.warn("download file:{} timeout, {} bytes not sent", file.getName(), remaining);
+			onError(event.getThrowable());
+		}
+
+		@Override
+		public void onError(AsyncEvent event) {
+			onError(event.getThrowable());
+		}
+
+		@Override
+		public void onComplete(AsyncEvent event) {
+			close();
+		}
+
+		@Override
+		public void onStartAsync(AsyncEvent event) {
+		}
+
+		/**
+		 * 关闭文件，只有第一次调用返回true
+		 */
+		private boolean close() {
+			if (!closed.compareAndSet(false, true)) {
+				return false;
+			}
+			if (channel != null) {
+				try {
+					channel.close();
+				} catch (IOException e) {
+					logger.debug("failed to close file:{}", file.getName(), e);
+				}
+			}
+			return true;
+		}
+	}
+}
@@ -0,0 +1,217 @@
+package com.akcome.file.srv;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileSystemException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.UUID;
+import java.util.regex.Pattern;
+
+import org.apache.commons.io.FileUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+/**
+ * 按内容寻址的文件存储：文件内容按SHA-256保存一份（blob），分组中用户可见的文件是指向blob的硬链接。
+ * blob的硬链接数即引用计数，删除文件只删除链接，最后一个链接删除后（链接数为1，只剩blob自身）由回收任务删除blob
+ */
+@Component
+public class BlobStore {
+	private static final String BLOB_DIR = ".blobs";
+	private static final String STAGING_DIR = ".staging";
+	private static final Pattern HASH_PATTERN = Pattern.compile("[0-9a-f]{64}");
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+	private final Logger logger = LoggerFactory.getLogger(getClass());
+	@Value("${fs.tmp.dir}")
+	private String fileTmpDir;
+	@Value("${fs.dir}")
+	private String fileDir;
+	@Value("${fs.blob.grace-minutes:60}")
+	private int graceMinutes;
+
+	/**
+	 * 边计算SHA-256边将输入流写入暂存文件，内容已存在时复用已有的blob，最后在target处创建指向blob的硬链接
+	 *
+	 * @param root
+	 *            分组所在的根目录，blob必须与分组文件在同一文件系统中
+	 * @param in
+	 *            文件内容
+	 * @param target
+	 *            分组中的目标文件，必须不存在
+	 * @return 文件内容的SHA-256
+	 * @throws IOException
+	 */
+	public String store(File root, InputStream in, File target) throws IOException {
+		File staging = new File(new File(getBlobDir(root), STAGING_DIR), UUID.randomUUID().toString());
+		FileUtils.forceMkdir(staging.getParentFile());
+		try {
+			MessageDigest digest = newDigest();
+			try (InputStream din = new DigestInputStream(in, digest)) {
+				Files.copy(din, staging.toPath());
+			}
+			String hash = toHex(digest.digest());
+			File blob = getBlobFile(root, hash);
+			if (!blob.exists()) {
+				FileUtils.forceMkdir(blob.getParentFile());
+				try {
+					Files.move(staging.toPath(), blob.toPath(), StandardCopyOption.ATOMIC_MOVE);
+				} catch (FileAlreadyExistsException | AtomicMoveNotSupportedException e) {
+					// 相同内容被并发写入，使用已有的blob
+					logger.debug("blob:{} already stored", hash);
+				}
+			}
+			try {
+				linkOrCopy(blob, target);
+			} catch (NoSuchFileException e) {
+				// blob刚好被回收任务删除，直接使用暂存文件，不再去重
+				logger.info("blob:{} collected while linking, store without dedup", hash);
+				Files.move(staging.toPath(), target.toPath());
+			}
+			return hash;
+		} finally {
+			FileUtils.deleteQuietly(staging);
+		}
+	}
+
+	/**
+	 * 秒传：内容已存在时直接在target处创建指向blob的硬链接，不需要上传文件内容
+	 *
+	 * @param root
+	 *            分组所在的根目录
+	 * @param hash
+	 *            文件内容的SHA-256
+	 * @param target
+	 *            分组中的目标文件，必须不存在
+	 * @return 内容存在并创建链接时返回true
+	 * @throws IOException
+	 */
+	public boolean link(File root, String hash, File target) throws IOException {
+		if (!isValidHash(hash)) {
+			return false;
+		}
+		File blob = getBlobFile(root, hash);
+		if (!blob.exists()) {
+			return false;
+		}
+		try {
+			linkOrCopy(blob, target);
+			return true;
+		} catch (NoSuchFileException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * 获取已保存内容的大小
+	 *
+	 * @param root
+	 *            分组所在的根目录
+	 * @param hash
+	 *            文件内容的SHA-256
+	 * @return 内容不存在时返回-1
+	 */
+	public long getSize(File root, String hash) {
+		if (!isValidHash(hash)) {
+			return -1;
+		}
+		File blob = getBlobFile(root, hash);
+		return blob.exists() ? blob.length() : -1;
+	}
+
+	public boolean isValidHash(String hash) {
+		return hash != null && HASH_PATTERN.matcher(hash).matches();
+	}
+
+	/**
+	 * 回收已没有引用的blob（硬链接数为1），以及异常中断留下的暂存文件
+	 */
+	@Scheduled(cron = "0 15 * * * ?")
+	public void collectOrphanBlobs() {
+		for (String root : new String[] { fileDir, fileTmpDir }) {
+			File blobDir = getBlobDir(new File(root));
+			if (blobDir.exists()) {
+				logger.info("start collecting orphan blobs in:{}", blobDir);
+				try {
+					long removed = collect(blobDir.toPath());
+					logger.info("finished collecting orphan blobs in:{}, {} removed", blobDir, removed);
+				} catch (IOException | UnsupportedOperationException e) {
+					logger.warn("failed to collect orphan blobs in:{}", blobDir, e);
+				}
+			}
+		}
+	}
+
+	private long collect(Path blobDir) throws IOException {
+		final long expire = System.currentTimeMillis() - graceMinutes * 60L * 1000;
+		final long[] removed = new long[1];
+		Files.walkFileTree(blobDir, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+				// 新写入的blob可能正在创建链接，超过宽限期后才回收
+				if (attrs.lastModifiedTime().toMillis() > expire) {
+					return FileVisitResult.CONTINUE;
+				}
+				boolean staging = STAGING_DIR.equals(file.getParent().getFileName().toString());
+				if (staging || ((Number) Files.getAttribute(file, "unix:nlink")).intValue() <= 1) {
+					Files.deleteIfExists(file);
+					removed[0]++;
+				}
+				return FileVisitResult.CONTINUE;
+			}
+		});
+		return removed[0];
+	}
+
+	private void linkOrCopy(File blob, File target) throws IOException {
+		try {
+			Files.createLink(target.toPath(), blob.toPath());
+		} catch (NoSuchFileException e) {
+			throw e;
+		} catch (UnsupportedOperationException | FileSystemException e) {
+			// 文件系统不支持硬链接或跨文件系统时复制内容
+			logger.warn("failed to link blob:{}, copy instead", blob.getName(), e);
+			Files.copy(blob.toPath(), target.toPath());
+		}
+	}
+
+	private File getBlobDir(File root) {
+		return new File(root, BLOB_DIR);
+	}
+
+	private File getBlobFile(File root, String hash) {
+		return new File(getBlobDir(root), hash.substring(0, 2) + File.separator + hash.substring(2, 4)
+				+ File.separator + hash);
+	}
+
+	private MessageDigest newDigest() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static String toHex(byte[] bytes) {
+		char[] chars = new char[bytes.length * 2];
+		for (int i = 0; i < bytes.length; i++) {
+			chars[i * 2] = HEX[(bytes[i] >> 4) & 0xf];
+			chars[i * 2 + 1] = HEX[bytes[i] & 0xf];
+		}
+		return new String(chars);
+	}
+}
@@ -0,0 +1,36 @@
+package com.akcome.file.srv;
+
+import java.util.List;
+
+import lombok.Data;
+
+/**
+ * 分片上传会话信息
+ */
+@Data
+public class ChunkSession {
+	private String uploadId;
+	private String group;
+	private String func;
+	private String fileName;
+	private long fileSize;
+	private long chunkSize;
+	private int chunkCount;
+	private long createTime;
+	/** 已接收的分片序号，从0开始 */
+	private List<Integer> receivedChunks;
+
+	/**
+	 * 获取指定分片应有的大小，最后一个分片可能小于chunkSize
+	 *
+	 * @param index
+	 *            分片序号
+	 * @return 分片大小
+	 */
+	public long getChunkLength(int index) {
+		if (index == chunkCount - 1) {
+			return fileSize - chunkSize * index;
+		}
+		return chunkSize;
+	}
+}
@@ -0,0 +1,99 @@
+package com.akcome.file.srv;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Controller;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.ResponseBody;
+
+import com.akcome.common.file.FileClientUtil;
+import com.akcome.common.web.AbstractWebController;
+import com.akcome.common.web.out.AjaxResult;
+
+/**
+ * 分片上传接口：init初始化会话，按序号上传分片（请求体为分片的原始字节），complete合并为文件
+ */
+@Controller
+public class ChunkUploadController extends AbstractWebController {
+	@Autowired
+	private ChunkUploadService chunkSvc;
+
+	@RequestMapping(value = "/file/v1/{group}/chunk/init", method = RequestMethod.POST)
+	@ResponseBody
+	public AjaxResult<ChunkSession> initUpload(@PathVariable String group, @RequestParam String fileName,
+			@RequestParam long fileSize, @RequestParam(required = false) String func) {
+		AjaxResult<ChunkSession> ret = null;
+		try {
+			ret = AjaxResult.create(true);
+			ret.setObj(chunkSvc.initSession(group, func, fileName, fileSize));
+		} catch (Exception e) {
+			logger.warn("failed to init chunk upload:{} in group:{}", fileName, group, e);
+			ret = AjaxResult.create(false, e.getMessage());
+		}
+		return ret;
+	}
+
+	@RequestMapping(value = "/file/v1/{group}/chunk/{uploadId}/{index}", method = { RequestMethod.PUT,
+			RequestMethod.POST })
+	@ResponseBody
+	public AjaxResult<?> uploadChunk(HttpServletRequest request, @PathVariable String group,
+			@PathVariable String uploadId, @PathVariable int index) {
+		AjaxResult<?> ret = null;
+		try {
+			chunkSvc.putChunk(group, uploadId, index, request.getInputStream());
+			ret = AjaxResult.create(true);
+		} catch (Exception e) {
+			logger.warn("failed to upload chunk:{} of upload:{}", index, uploadId, e);
+			ret = AjaxResult.create(false, e.getMessage());
+		}
+		return ret;
+	}
+
+	@RequestMapping(value = "/file/v1/{group}/chunk/{uploadId}", method = RequestMethod.GET)
+	@ResponseBody
+	public AjaxResult<ChunkSession> getUploadStatus(@PathVariable String group, @PathVariable String uploadId) {
+		AjaxResult<ChunkSession> ret = null;
+		try {
+			ret = AjaxResult.create(true);
+			ret.setObj(chunkSvc.getStatus(group, uploadId));
+		} catch (Exception e) {
+			logger.warn("failed to get status of upload:{}", uploadId, e);
+			ret = AjaxResult.create(false, e.getMessage());
+		}
+		return ret;
+	}
+
+	@RequestMapping(value = "/file/v1/{group}/chunk/{uploadId}/complete", method = RequestMethod.POST)
+	@ResponseBody
+	public AjaxResult<String> completeUpload(@PathVariable String group, @PathVariable String uploadId) {
+		AjaxResult<String> ret = null;
+		try {
+			ChunkSession session = chunkSvc.getSession(group, uploadId);
+			String fileUrl = chunkSvc.complete(group, uploadId);
+			ret = AjaxResult.create(true);
+			ret.setObj(FileClientUtil.constructFilePathV1(group, fileUrl, session.getFileName()));
+		} catch (Exception e) {
+			logger.warn("failed to complete upload:{}", uploadId, e);
+			ret = AjaxResult.create(false, e.getMessage());
+		}
+		return ret;
+	}
+
+	@RequestMapping(value = "/file/v1/{group}/chunk/{uploadId}/abort", method = RequestMethod.POST)
+	@ResponseBody
+	public AjaxResult<?> abortUpload(@PathVariable String group, @PathVariable String uploadId) {
+		AjaxResult<?> ret = null;
+		try {
+			chunkSvc.abort(group, uploadId);
+			ret = AjaxResult.create(true);
+		} catch (Exception e) {
+			logger.warn("failed to abort upload:{}", uploadId, e);
+			ret = AjaxResult.create(false, e.getMessage());
+		}
+		return ret;
+	}
+}
@@ -0,0 +1,395 @@
+package com.akcome.file.srv;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+
+import javax.annotation.PostConstruct;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.FilenameUtils;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.util.StringUtils;
+
+import com.akcome.common.exception.SystemException;
+import com.akcome.file.config.FileConfigInfo;
+
+/**
+ * 分片上传：客户端先初始化会话，再以任意顺序、并行上传各分片，全部上传完成后合并为分组中的文件。
+ * 会话信息和分片都保存在硬盘上，节点重启后客户端可查询已接收的分片并继续上传
+ */
+@Service
+public class ChunkUploadService extends AbstractFileService {
+	private static final String SESSION_FILE = "session.properties";
+	private static final String PART_SUFFIX = ".part";
+	private static final Pattern UPLOAD_ID_PATTERN = Pattern.compile("[0-9a-f]{32}");
+	@Autowired
+	private FileService fileSvc;
+	@Autowired
+	private TransferLimiter transferLimiter;
+	@Autowired
+	private TransferMetrics transferMetrics;
+	@Value("${fs.chunk.size:5242880}")
+	private long defaultChunkSize;
+	@Value("${fs.chunk.timeout:1440}")
+	private int defaultChunkTimeout;
+	@Value("${fs.chunk.max-count:10000}")
+	private int maxChunkCount;
+	private File chunkDir;
+	private Map<String, ChunkSession> sessionMap = new ConcurrentHashMap<>();
+	private Map<String, Boolean> completingMap = new ConcurrentHashMap<>();
+
+	@PostConstruct
+	public void init() {
+		chunkDir = new File(fileTmpDir, ".chunks");
+	}
+
+	/**
+	 * 初始化分片上传会话
+	 *
+	 * @param group
+	 *            文件分组
+	 * @param func
+	 *            配置名，为空时使用默认配置
+	 * @param fileName
+	 *            原始文件名
+	 * @param fileSize
+	 *            文件总大小
+	 * @return 会话信息，包含uploadId、分片大小和分片数
+	 * @throws SystemException
+	 */
+	public ChunkSession initSession(String group, String func, String fileName, long fileSize)
+			throws SystemException {
+		FileConfigInfo config = getFileConfig(group, func);
+		if (config == null) {
+			throw new SystemException("invalid group:" + group);
+		}
+		if (fileSize <= 0) {
+			throw new SystemException("invalid file size:" + fileSize);
+		}
+		if (config.getMaxSize() != null && fileSize > config.getMaxSize()) {
+			logger.warn("chunk upload exceed max size:{} for appId:{} and function:{}", config.getMaxSize(), group,
+					func);
+			throw new SystemException("file size exceed max size:" + config.getMaxSize());
+		}
+		// 配额按分组的默认配置检查，超过配额时不创建会话
+		fileSvc.checkQuota(group, StringUtils.isEmpty(func) ? config : getFileConfig(group), fileSize);
+		long chunkSize = (config.getChunkSize() == null || config.getChunkSize() <= 0) ? defaultChunkSize
+				: config.getChunkSize();
+		long chunkCount = (fileSize + chunkSize - 1) / chunkSize;
+		if (chunkCount > maxChunkCount) {
+			throw new SystemException("too many chunks:" + chunkCount);
+		}
+
+		ChunkSession session = new ChunkSession();
+		session.setUploadId(UUID.randomUUID().toString().replace("-", ""));
+		session.setGroup(group);
+		session.setFunc(func);
+		session.setFileName(FilenameUtils.getName(fileName));
+		session.setFileSize(fileSize);
+		session.setChunkSize(chunkSize);
+		session.setChunkCount((int) chunkCount);
+		session.setCreateTime(System.currentTimeMillis());
+		session.setReceivedChunks(Collections.emptyList());
+
+		File dir = getSessionDir(session.getUploadId());
+		if (dir.mkdirs() == false) {
+			throw new SystemException("failed to create folder:" + dir.getAbsolutePath());
+		}
+		try {
+			writeSession(session, new File(dir, SESSION_FILE));
+		} catch (IOException e) {
+			FileUtils.deleteQuietly(dir);
+			logger.warn("failed to init chunk session", e);
+			throw new SystemException("failed to init chunk session", e);
+		}
+		sessionMap.put(session.getUploadId(), session);
+		return session;
+	}
+
+	/**
+	 * 保存一个分片，同一分片可以重复上传，后上传的覆盖先上传的
+	 *
+	 * @param group
+	 *            文件分组
+	 * @param uploadId
+	 *            会话标识
+	 * @param index
+	 *            分片序号，从0开始
+	 * @param in
+	 *            分片内容
+	 * @throws SystemException
+	 */
+	public void putChunk(String group, String uploadId, int index, InputStream in) throws SystemException {
+		ChunkSession session = getSession(group, uploadId);
+		if (index < 0 || index >= session.getChunkCount()) {
+			throw new SystemException("invalid chunk index:" + index);
+		}
+		File dir = getSessionDir(uploadId);
+		long expected = session.getChunkLength(index);
+		// 先写入临时文件，校验大小后再原子替换，避免并发上传同一分片时读到不完整的分片
+		File tmpFile = new File(dir, index + PART_SUFFIX + "." + UUID.randomUUID().toString());
+		try {
+			long written = 0;
+			try (OutputStream os = new FileOutputStream(tmpFile)) {
+				InputStream input = transferLimiter.throttle(in, group);
+				byte[] buffer = new byte[8192];
+				int length;
+				while ((length = input.read(buffer)) > 0) {
+					written += length;
+					if (written > expected) {
+						throw new SystemException("chunk:" + index + " exceed size:" + expected);
+					}
+					os.write(buffer, 0, length);
+				}
+			}
+			if (written != expected) {
+				throw new SystemException("chunk:" + index + " size:" + written + " expected:" + expected);
+			}
+			transferMetrics.addUploadBytes(group, written);
+			Files.move(tmpFile.toPath(), new File(dir, index + PART_SUFFIX).toPath(),
+					StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			logger.warn("failed to save chunk:{} of upload:{}", index, uploadId, e);
+			throw new SystemException("failed to save chunk", e);
+		} finally {
+			FileUtils.deleteQuietly(tmpFile);
+		}
+	}
+
+	/**
+	 * 查询会话状态，包括已接收的分片序号，用于断点续传
+	 *
+	 * @param group
+	 *            文件分组
+	 * @param uploadId
+	 *            会话标识
+	 * @return 会话信息
+	 * @throws SystemException
+	 */
+	public ChunkSession getStatus(String group, String uploadId) throws SystemException {
+		ChunkSession session = getSession(group, uploadId);
+		ChunkSession status = new ChunkSession();
+		status.setUploadId(session.getUploadId());
+		status.setGroup(session.getGroup());
+		status.setFunc(session.getFunc());
+		status.setFileName(session.getFileName());
+		status.setFileSize(session.getFileSize());
+		status.setChunkSize(session.getChunkSize());
+		status.setChunkCount(session.getChunkCount());
+		status.setCreateTime(session.getCreateTime());
+		status.setReceivedChunks(listReceivedChunks(session));
+		return status;
+	}
+
+	/**
+	 * 所有分片上传完成后，将分片合并为分组中的文件，返回新的文件名
+	 *
+	 * @param group
+	 *            文件分组
+	 * @param uploadId
+	 *            会话标识
+	 * @return 当前文件保存在硬盘中的文件名
+	 * @throws SystemException
+	 */
+	public String complete(String group, String uploadId) throws SystemException {
+		ChunkSession session = getSession(group, uploadId);
+		if (completingMap.putIfAbsent(uploadId, Boolean.TRUE) != null) {
+			throw new SystemException("upload:" + uploadId + " is completing");
+		}
+		File dir = getSessionDir(uploadId);
+		File assembled = new File(dir, "assembled");
+		try {
+			List<Integer> received = listReceivedChunks(session);
+			if (received.size() != session.getChunkCount()) {
+				throw new SystemException("chunks not complete, received " + received.size() + " of "
+						+ session.getChunkCount());
+			}
+			try (FileChannel out = FileChannel.open(assembled.toPath(), StandardOpenOption.CREATE,
+					StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+				for (int i = 0; i < session.getChunkCount(); i++) {
+					try (FileChannel in = new FileInputStream(new File(dir, i + PART_SUFFIX)).getChannel()) {
+						long position = 0;
+						long size = in.size();
+						while (position < size) {
+							position += in.transferTo(position, size - position, out);
+						}
+					}
+				}
+			}
+			String fileName = fileSvc.storeFile(assembled, session.getFileName(), group);
+			removeSession(uploadId);
+			return fileName;
+		} catch (IOException e) {
+			FileUtils.deleteQuietly(assembled);
+			logger.warn("failed to complete upload:{}", uploadId, e);
+			throw new SystemException("failed to complete upload", e);
+		} finally {
+			completingMap.remove(uploadId);
+		}
+	}
+
+	/**
+	 * 放弃分片上传，删除所有已上传的分片
+	 *
+	 * @param group
+	 *            文件分组
+	 * @param uploadId
+	 *            会话标识
+	 * @throws SystemException
+	 */
+	public void abort(String group, String uploadId) throws SystemException {
+		getSession(group, uploadId);
+		removeSession(uploadId);
+	}
+
+	/**
+	 * 清理超时的分片上传会话，超时时间从最后一次上传分片开始计算
+	 */
+	@Scheduled(cron = "0 0/10 * * * ?")
+	public void clearTimeoutSession() {
+		if (!chunkDir.exists()) {
+			return;
+		}
+		logger.info("start the clear timeout chunk session job");
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(chunkDir.toPath())) {
+			for (Path path : stream) {
+				String uploadId = path.getFileName().toString();
+				if (!UPLOAD_ID_PATTERN.matcher(uploadId).matches() || completingMap.containsKey(uploadId)) {
+					continue;
+				}
+				try {
+					ChunkSession session = loadSession(uploadId);
+					int timeout = defaultChunkTimeout;
+					FileConfigInfo config = session == null ? null : getFileConfig(session.getGroup());
+					if (config != null && config.getChunkTimeout() != null && config.getChunkTimeout() > 0) {
+						timeout = config.getChunkTimeout();
+					}
+					if (Files.getLastModifiedTime(path).toMillis() + timeout * 60L * 1000 < System
+							.currentTimeMillis()) {
+						logger.info("chunk session:{} timeout, remove", uploadId);
+						removeSession(uploadId);
+					}
+				} catch (Exception e) {
+					logger.warn("failed to check chunk session:{}", uploadId, e);
+				}
+			}
+		} catch (IOException e) {
+			logger.warn("failed to loop chunk sessions", e);
+		}
+		logger.info("finished the clear timeout chunk session job");
+	}
+
+	/**
+	 * 获取会话信息，内存中不存在时从硬盘恢复
+	 *
+	 * @param group
+	 *            文件分组
+	 * @param uploadId
+	 *            会话标识
+	 * @return 会话信息
+	 * @throws SystemException
+	 */
+	public ChunkSession getSession(String group, String uploadId) throws SystemException {
+		if (StringUtils.isEmpty(uploadId) || !UPLOAD_ID_PATTERN.matcher(uploadId).matches()) {
+			throw new SystemException("invalid uploadId:" + uploadId);
+		}
+		ChunkSession session = sessionMap.get(uploadId);
+		if (session == null) {
+			// 节点重启后从硬盘恢复会话
+			try {
+				session = loadSession(uploadId);
+			} catch (IOException e) {
+				logger.warn("failed to load chunk session:{}", uploadId, e);
+				throw new SystemException("failed to load chunk session", e);
+			}
+			if (session == null) {
+				throw new SystemException("upload:" + uploadId + " not exist");
+			}
+			sessionMap.put(uploadId, session);
+		}
+		if (!session.getGroup().equalsIgnoreCase(group)) {
+			throw new SystemException("upload:" + uploadId + " not belong to group:" + group);
+		}
+		return session;
+	}
+
+	private List<Integer> listReceivedChunks(ChunkSession session) {
+		List<Integer> received = new ArrayList<>();
+		File dir = getSessionDir(session.getUploadId());
+		for (int i = 0; i < session.getChunkCount(); i++) {
+			File part = new File(dir, i + PART_SUFFIX);
+			if (part.exists() && part.length() == session.getChunkLength(i)) {
+				received.add(i);
+			}
+		}
+		return received;
+	}
+
+	private void removeSession(String uploadId) {
+		sessionMap.remove(uploadId);
+		FileUtils.deleteQuietly(getSessionDir(uploadId));
+	}
+
+	private File getSessionDir(String uploadId) {
+		return new File(chunkDir, uploadId);
+	}
+
+	private void writeSession(ChunkSession session, File file) throws IOException {
+		Properties props = new Properties();
+		props.setProperty("group", session.getGroup());
+		if (session.getFunc() != null) {
+			props.setProperty("func", session.getFunc());
+		}
+		props.setProperty("fileName", session.getFileName());
+		props.setProperty("fileSize", String.valueOf(session.getFileSize()));
+		props.setProperty("chunkSize", String.valueOf(session.getChunkSize()));
+		props.setProperty("chunkCount", String.valueOf(session.getChunkCount()));
+		props.setProperty("createTime", String.valueOf(session.getCreateTime()));
+		try (OutputStream os = new FileOutputStream(file)) {
+			props.store(os, null);
+		}
+	}
+
+	private ChunkSession loadSession(String uploadId) throws IOException {
+		File file = new File(getSessionDir(uploadId), SESSION_FILE);
+		if (!file.exists()) {
+			return null;
+		}
+		Properties props = new Properties();
+		try (InputStream is = new FileInputStream(file)) {
+			props.load(is);
+		}
+		ChunkSession session = new ChunkSession();
+		session.setUploadId(uploadId);
+		session.setGroup(props.getProperty("group"));
+		session.setFunc(props.getProperty("func"));
+		session.setFileName(props.getProperty("fileName"));
+		session.setFileSize(Long.parseLong(props.getProperty("fileSize")));
+		session.setChunkSize(Long.parseLong(props.getProperty("chunkSize")));
+		session.setChunkCount(Integer.parseInt(props.getProperty("chunkCount")));
+		session.setCreateTime(Long.parseLong(props.getProperty("createTime")));
+		session.setReceivedChunks(Collections.emptyList());
+		return session;
+	}
+}
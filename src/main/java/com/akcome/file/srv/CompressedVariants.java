@@ -0,0 +1,312 @@
+package com.akcome.file.srv;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.servlet.ServletContext;
+import javax.servlet.http.HttpServletRequest;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.http.HttpHeaders;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Component;
+import org.springframework.util.StringUtils;
+
+import com.akcome.file.config.FileConfigInfo;
+
+/**
+ * 可压缩文件的gzip预压缩版本：分组配置了compressTypes时，文件保存或移入分组后在后台压缩一次，
+ * 压缩结果以隐藏文件（.文件名.gz）保存在原文件旁边，之后的下载直接输出压缩文件，不再占用CPU。
+ * 压缩后没有变小的文件保存为空文件，表示不需要压缩，不会重复尝试
+ */
+@Component
+public class CompressedVariants implements PublicMetrics {
+	public static final String GZIP = "gzip";
+	private static final String SUFFIX = ".gz";
+	private static final String TMP_SUFFIX = ".tmp";
+	private final Logger logger = LoggerFactory.getLogger(getClass());
+	/** 小于该大小的文件不压缩 */
+	@Value("${fs.compress.min-size:1024}")
+	private long minSize;
+	@Value("${fs.compress.level:6}")
+	private int level;
+	@Value("${fs.compress.threads:2}")
+	private int threads;
+	@Value("${fs.compress.queue-size:1000}")
+	private int queueSize;
+	@Autowired(required = false)
+	private ServletContext servletContext;
+	@Autowired
+	private HotFileCache hotFileCache;
+	private ThreadPoolExecutor compressExecutor;
+	/** 正在压缩或等待压缩的文件路径，同一文件只压缩一次 */
+	private final Set<String> pending = ConcurrentHashMap.newKeySet();
+	/** 已解析的compressTypes配置 */
+	private final Map<String, FileTypeMatcher> typesMap = new ConcurrentHashMap<>();
+	private final AtomicLong createdCount = new AtomicLong();
+	private final AtomicLong savedBytes = new AtomicLong();
+	private final AtomicLong hitCount = new AtomicLong();
+	private final AtomicLong missCount = new AtomicLong();
+
+	@PostConstruct
+	public void init() {
+		// 队列满时丢弃，文件下载时会重新加入压缩队列
+		compressExecutor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+				new ArrayBlockingQueue<>(queueSize), new CustomizableThreadFactory("compress-"),
+				new ThreadPoolExecutor.AbortPolicy());
+	}
+
+	@PreDestroy
+	public void destroy() {
+		if (compressExecutor != null) {
+			compressExecutor.shutdownNow();
+		}
+	}
+
+	/**
+	 * 判断分组是否压缩该类型的文件
+	 *
+	 * @param config
+	 *            文件所在分组的配置
+	 * @param fileName
+	 *            文件名，用于按后缀匹配
+	 * @param contentType
+	 *            文件的MIME类型
+	 * @param length
+	 *            文件大小
+	 */
+	public boolean isCompressible(FileConfigInfo config, String fileName, String contentType, long length) {
+		if (config == null || length < minSize || StringUtils.isEmpty(config.getCompressTypes())) {
+			return false;
+		}
+		return typesMap.computeIfAbsent(config.getCompressTypes(), FileTypeMatcher::new).matches(fileName,
+				contentType);
+	}
+
+	/**
+	 * 判断请求是否接受gzip编码
+	 */
+	public boolean acceptsGzip(HttpServletRequest request) {
+		String acceptEncoding = request.getHeader(HttpHeaders.ACCEPT_ENCODING);
+		if (StringUtils.isEmpty(acceptEncoding)) {
+			return false;
+		}
+		for (String coding : acceptEncoding.split(",")) {
+			String[] params = coding.split(";");
+			String name = params[0].trim();
+			if (GZIP.equalsIgnoreCase(name) || "*".equals(name)) {
+				for (int i = 1; i < params.length; i++) {
+					String param = params[i].trim();
+					if (param.startsWith("q=") && isZero(param.substring(2))) {
+						return false;
+					}
+				}
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * 获取文件的压缩版本，不存在或已过期时加入后台压缩队列
+	 *
+	 * @param file
+	 *            原文件
+	 * @param lastModified
+	 *            原文件的修改时间
+	 * @return 压缩文件，尚未压缩或压缩后没有变小时返回null
+	 */
+	public File get(File file, long lastModified) {
+		File variant = getVariantFile(file);
+		long variantModified = variant.lastModified();
+		if (variantModified != 0 && variantModified >= lastModified) {
+			if (variant.length() == 0) {
+				return null;
+			}
+			hitCount.incrementAndGet();
+			return variant;
+		}
+		missCount.incrementAndGet();
+		submit(file);
+		return null;
+	}
+
+	/**
+	 * 文件保存到分组后，分组压缩该类型的文件时加入后台压缩队列
+	 *
+	 * @param file
+	 *            已保存的文件
+	 * @param config
+	 *            分组配置
+	 */
+	public void afterStored(File file, FileConfigInfo config) {
+		if (isCompressible(config, file.getName(), getContentType(file.getName()), file.length())) {
+			submit(file);
+		}
+	}
+
+	/**
+	 * 文件移动到其它分组后，目标分组压缩该类型的文件时移动压缩文件，否则删除
+	 *
+	 * @param srcFile
+	 *            移动前的文件
+	 * @param targetFile
+	 *            移动后的文件
+	 * @param targetConfig
+	 *            目标分组的配置
+	 */
+	public void move(File srcFile, File targetFile, FileConfigInfo targetConfig) {
+		File srcVariant = getVariantFile(srcFile);
+		boolean compressible = isCompressible(targetConfig, targetFile.getName(),
+				getContentType(targetFile.getName()), targetFile.length());
+		if (srcVariant.exists()) {
+			if (compressible) {
+				try {
+					Files.move(srcVariant.toPath(), getVariantFile(targetFile).toPath(),
+							StandardCopyOption.REPLACE_EXISTING);
+					hotFileCache.invalidate(srcVariant);
+					return;
+				} catch (IOException e) {
+					logger.warn("failed to move compressed file:{}", srcVariant.getName(), e);
+				}
+			}
+			delete(srcFile);
+		}
+		if (compressible) {
+			submit(targetFile);
+		}
+	}
+
+	/**
+	 * 原文件删除后删除压缩文件
+	 *
+	 * @param file
+	 *            原文件
+	 */
+	public void delete(File file) {
+		File variant = getVariantFile(file);
+		if (variant.delete()) {
+			hotFileCache.invalidate(variant);
+		}
+	}
+
+	@Override
+	public Collection<Metric<?>> metrics() {
+		List<Metric<?>> metrics = new ArrayList<>();
+		metrics.add(new Metric<Long>("fs.compress.created", createdCount.get()));
+		metrics.add(new Metric<Long>("fs.compress.saved-bytes", savedBytes.get()));
+		metrics.add(new Metric<Long>("fs.compress.hits", hitCount.get()));
+		metrics.add(new Metric<Long>("fs.compress.misses", missCount.get()));
+		metrics.add(new Metric<Integer>("fs.compress.pending", pending.size()));
+		return metrics;
+	}
+
+	private void submit(File file) {
+		String key = file.getPath();
+		if (!pending.add(key)) {
+			return;
+		}
+		try {
+			compressExecutor.execute(() -> {
+				try {
+					compress(file);
+				} catch (Exception e) {
+					logger.warn("failed to compress file:{}", file.getName(), e);
+				} finally {
+					pending.remove(key);
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			pending.remove(key);
+			logger.debug("compress queue full, skip file:{}", file.getName());
+		}
+	}
+
+	/**
+	 * 压缩到临时文件后原子地替换压缩文件；压缩期间原文件被删除或移动时删除压缩文件
+	 */
+	private void compress(File file) throws IOException {
+		long lastModified = file.lastModified();
+		if (lastModified == 0) {
+			return;
+		}
+		File variant = getVariantFile(file);
+		File tmpFile = new File(variant.getPath() + TMP_SUFFIX);
+		try (InputStream in = Files.newInputStream(file.toPath());
+				OutputStream out = new LevelGZIPOutputStream(Files.newOutputStream(tmpFile.toPath()), level)) {
+			byte[] buffer = new byte[65536];
+			for (int n; (n = in.read(buffer)) >= 0;) {
+				out.write(buffer, 0, n);
+			}
+		} catch (IOException e) {
+			tmpFile.delete();
+			throw e;
+		}
+		long length = file.length();
+		if (tmpFile.length() >= length) {
+			// 压缩后没有变小，保存为空文件
+			Files.write(tmpFile.toPath(), new byte[0]);
+		} else {
+			savedBytes.addAndGet(length - tmpFile.length());
+		}
+		Files.move(tmpFile.toPath(), variant.toPath(), StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+		hotFileCache.invalidate(variant);
+		if (!file.exists()) {
+			delete(file);
+			return;
+		}
+		createdCount.incrementAndGet();
+	}
+
+	private File getVariantFile(File file) {
+		return new File(file.getParentFile(), "." + file.getName() + SUFFIX);
+	}
+
+	private String getContentType(String fileName) {
+		return servletContext == null ? null : servletContext.getMimeType(fileName);
+	}
+
+	private static boolean isZero(String q) {
+		try {
+			return Double.parseDouble(q.trim()) == 0;
+		} catch (NumberFormatException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * 可设置压缩级别的GZIPOutputStream
+	 */
+	private static class LevelGZIPOutputStream extends GZIPOutputStream {
+		LevelGZIPOutputStream(OutputStream out, int level) throws IOException {
+			super(out, 65536);
+			def.setLevel(level < Deflater.NO_COMPRESSION || level > Deflater.BEST_COMPRESSION
+					? Deflater.DEFAULT_COMPRESSION : level);
+		}
+	}
+}
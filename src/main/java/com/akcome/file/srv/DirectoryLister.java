@@ -0,0 +1,199 @@
+package com.akcome.file.srv;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.function.Predicate;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.util.StringUtils;
+
+import com.akcome.file.client.FileListPage;
+import com.akcome.file.client.FileStat;
+
+/**
+ * 分页列出分组文件夹（包括分桶文件夹）中的文件，按路径排序，游标为上一页最后检查的路径。
+ * 每次通过DirectoryStream逐个读取目录项，只保留游标之后最小的若干个文件名，内存占用与每页大小成正比，与目录大小无关；
+ * 以.开头的文件和文件夹（压缩文件、缩略图、元数据等）不列出。一页中读取的目录项超过max-scan时，处理完当前选出的一批文件名后提前返回，
+ * 游标照常前进，过滤条件很少匹配时也不会长时间占用线程；目录项数超过max-scan的大目录每页仍能返回完整的一页
+ */
+@Component
+public class DirectoryLister {
+	/** 每次从一个目录中选出的最少文件名数，过滤条件排除大部分文件时减少重复扫描 */
+	private static final int MIN_BATCH = 256;
+	@Value("${fs.list.max-limit:1000}")
+	private int maxLimit;
+	@Value("${fs.list.max-scan:100000}")
+	private int maxScan;
+
+	public DirectoryLister() {
+	}
+
+	DirectoryLister(int maxLimit, int maxScan) {
+		this.maxLimit = maxLimit;
+		this.maxScan = maxScan;
+	}
+
+	/**
+	 * 列出文件夹中游标之后的一页文件
+	 *
+	 * @param dir
+	 *            分组文件夹
+	 * @param cursor
+	 *            上一页返回的游标，为空时从头开始
+	 * @param limit
+	 *            每页最多返回的文件数，不超过max-limit
+	 * @param filter
+	 *            文件过滤条件
+	 * @return 一页文件，没有更多文件时nextCursor为空
+	 * @throws IOException
+	 * @throws IllegalArgumentException
+	 *             游标无效
+	 */
+	public FileListPage list(File dir, String cursor, int limit, Predicate<FileStat> filter) throws IOException {
+		Scan scan = new Scan(Math.max(1, Math.min(limit, maxLimit)), filter);
+		Path root = dir.toPath();
+		if (Files.isDirectory(root)) {
+			scan.more = scan(root, "", parseCursor(cursor), scan);
+		}
+		FileListPage page = new FileListPage();
+		page.setFiles(scan.files);
+		page.setNextCursor(scan.more ? scan.lastPath : null);
+		return page;
+	}
+
+	/**
+	 * 按名称顺序扫描文件夹中游标之后的目录项，子文件夹递归扫描
+	 *
+	 * @return 本页已满或读取的目录项数已达上限时返回true
+	 */
+	private boolean scan(Path dir, String relDir, List<String> cursor, Scan scan) throws IOException {
+		String after = null;
+		if (!cursor.isEmpty()) {
+			after = cursor.get(0);
+			Path child = dir.resolve(after);
+			if (cursor.size() > 1 && Files.isDirectory(child, LinkOption.NOFOLLOW_LINKS)
+					&& scan(child, relDir + after + "/", cursor.subList(1, cursor.size()), scan)) {
+				return true;
+			}
+		}
+		while (true) {
+			List<String> names = selectNext(dir, after, Math.max(scan.remaining(), MIN_BATCH), scan);
+			if (names.isEmpty()) {
+				return false;
+			}
+			for (String name : names) {
+				after = name;
+				Path child = dir.resolve(name);
+				String path = relDir + name;
+				BasicFileAttributes attrs = null;
+				try {
+					attrs = Files.readAttributes(child, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+				} catch (NoSuchFileException e) {
+					// 扫描期间被删除或移动
+				}
+				if (attrs != null && attrs.isDirectory()) {
+					if (scan(child, path + "/", Collections.emptyList(), scan)) {
+						return true;
+					}
+				} else if (attrs != null && attrs.isRegularFile()) {
+					FileStat stat = new FileStat(name, path, attrs.size(), attrs.lastModifiedTime().toMillis());
+					if (scan.filter.test(stat)) {
+						scan.files.add(stat);
+					}
+				}
+				// 已删除的目录项和其它类型的文件也推进游标
+				scan.lastPath = path;
+				if (scan.isFull()) {
+					return true;
+				}
+			}
+			// 读取目录时已计入全部目录项，选出的一批处理完后才检查上限，否则大目录每页只能返回一个文件
+			if (scan.isOverScanned()) {
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * 逐个读取目录项，选出名称在after之后最小的count个（不包括以.开头的），按名称排序
+	 */
+	private List<String> selectNext(Path dir, String after, int count, Scan scan) throws IOException {
+		PriorityQueue<String> heap = new PriorityQueue<>(count + 1, Comparator.reverseOrder());
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+			for (Path path : stream) {
+				scan.scanned++;
+				String name = path.getFileName().toString();
+				if (name.startsWith(".") || after != null && name.compareTo(after) <= 0) {
+					continue;
+				}
+				if (heap.size() < count) {
+					heap.add(name);
+				} else if (name.compareTo(heap.peek()) < 0) {
+					heap.poll();
+					heap.add(name);
+				}
+			}
+		}
+		List<String> names = new ArrayList<>(heap);
+		Collections.sort(names);
+		return names;
+	}
+
+	private List<String> parseCursor(String cursor) {
+		if (StringUtils.isEmpty(cursor)) {
+			return Collections.emptyList();
+		}
+		List<String> names = Arrays.asList(cursor.split("/"));
+		for (String name : names) {
+			if (name.isEmpty() || ".".equals(name) || "..".equals(name) || name.indexOf('\\') >= 0) {
+				throw new IllegalArgumentException("invalid cursor:" + cursor);
+			}
+		}
+		return names;
+	}
+
+	/**
+	 * 一次分页扫描的状态
+	 */
+	private class Scan {
+		private final int limit;
+		private final Predicate<FileStat> filter;
+		private final List<FileStat> files = new ArrayList<>();
+		/** 已检查的最后一个文件或已扫描完的最后一个文件夹 */
+		private String lastPath;
+		/** 已读取的目录项数 */
+		private long scanned;
+		/** 提前返回，可能还有更多文件 */
+		private boolean more;
+
+		Scan(int limit, Predicate<FileStat> filter) {
+			this.limit = limit;
+			this.filter = filter;
+		}
+
+		int remaining() {
+			return limit - files.size();
+		}
+
+		boolean isFull() {
+			return files.size() >= limit;
+		}
+
+		boolean isOverScanned() {
+			return scanned >= maxScan;
+		}
+	}
+}
@@ -1,19 +1,25 @@
 package com.akcome.file.srv;
 
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.InputStream;
-import java.io.OutputStream;
 import java.net.URLEncoder;
+import java.nio.file.NoSuchFileException;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
+import org.apache.commons.fileupload.FileItemIterator;
+import org.apache.commons.fileupload.FileItemStream;
 import org.apache.commons.io.FilenameUtils;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.cloud.context.config.annotation.RefreshScope;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.stereotype.Controller;
 import org.springframework.util.StringUtils;
@@ -32,12 +38,27 @@ import com.akcome.common.file.FileClientUtil;
 import com.akcome.common.request.in.FileInfo;
 import com.akcome.common.web.AbstractWebController;
 import com.akcome.common.web.out.AjaxResult;
+import com.akcome.file.client.FileListPage;
+import com.akcome.file.client.FileResult;
+import com.akcome.file.config.FileConfigInfo;
 
 @Controller
 @RefreshScope
 public class FileController extends AbstractWebController {
 	@Autowired
 	private FileService fileSvc;
+	@Autowired
+	private FileDownloader fileDownloader;
+	@Autowired
+	private AkcomeMultipartResolver multipartResolver;
+	@Autowired
+	private TransferMetrics transferMetrics;
+	@Autowired
+	private ZipArchiver zipArchiver;
+	@Autowired
+	private TransferLimiter transferLimiter;
+	@Value("${fs.qos.retry-after:1}")
+	private int retryAfter;
 
 	@RequestMapping(value = "/file/v1/{group}/upload", method = { RequestMethod.POST })
 	@ResponseBody
@@ -50,7 +71,7 @@ public class FileController extends AbstractWebController {
 	}
 
 	/**
-	 * 将文件保存到指定目录，并返回新的文件名
+	 * 将文件保存到指定目录，并返回新的文件名；请求中有多个文件时只保存第一个，返回值保持单个文件路径，多个文件使用batchupload
 	 * 
 	 * @param request
 	 * @param response
@@ -77,6 +98,18 @@ public class FileController extends AbstractWebController {
 						}
 					}
 				}
+			} else if (multipartResolver.isStreamingUpload(request)) {
+				// 流式上传：边解析边写入分组目录，part超过限制时立即中止
+				FileItemIterator iter = multipartResolver.getItemIterator(request);
+				while (iter.hasNext()) {
+					FileItemStream item = iter.next();
+					if (!item.isFormField() && StringUtils.hasText(item.getName())) {
+						map.put("fileName", FilenameUtils.getName(item.getName()));
+						fileUrl = fileSvc.storeFile(item.openStream(), item.getName(), group);
+						map.put("fileUrl", fileUrl);
+						break;
+					}
+				}
 			}
 		} catch (Exception e) {
 			this.logger.warn("failed upload file", e);
@@ -86,13 +119,115 @@ public class FileController extends AbstractWebController {
 		return map;
 	}
 
+	/**
+	 * 秒传：分组开启了按内容去重时，客户端先提交文件内容的SHA-256，内容已存在则直接返回文件路径，否则返回失败，客户端再正常上传
+	 * 
+	 * @param group
+	 * @param sha256
+	 *            文件内容的SHA-256（小写十六进制）
+	 * @param fileName
+	 *            原始文件名
+	 * @return 文件路径
+	 */
+	@RequestMapping(value = "/file/v1/{group}/instantupload", method = { RequestMethod.POST })
+	@ResponseBody
+	public AjaxResult<String> instantUploadFile(@PathVariable String group, @RequestParam String sha256,
+			@RequestParam String fileName) {
+		AjaxResult<String> ret = null;
+		try {
+			String fileUrl = fileSvc.storeFileByHash(sha256, fileName, group);
+			if (fileUrl == null) {
+				ret = AjaxResult.create(false, "content not found");
+			} else {
+				ret = AjaxResult.create(true);
+				ret.setObj(FileClientUtil.constructFilePathV1(group, fileUrl, FilenameUtils.getName(fileName)));
+			}
+		} catch (Exception e) {
+			logger.warn("failed to instant upload file:{} in group:{}", fileName, group, e);
+			ret = AjaxResult.create(false, e.getMessage());
+		}
+		return ret;
+	}
+
+	/**
+	 * 一次上传多个文件，文件在IO线程池中并发保存，每个文件单独返回处理结果
+	 * 
+	 * @param request
+	 * @param group
+	 * @return 每个文件的处理结果
+	 * @throws BusinessException
+	 */
+	@RequestMapping(value = "/file/v1/{group}/batchupload", method = { RequestMethod.POST })
+	@ResponseBody
+	public AjaxResult<List<FileResult>> batchUploadFile(HttpServletRequest request, @PathVariable String group)
+			throws BusinessException {
+		List<FileResult> results = new ArrayList<>();
+		try {
+			if (request instanceof MultipartHttpServletRequest) {
+				List<MultipartFile> files = new ArrayList<>();
+				long totalSize = 0;
+				for (List<MultipartFile> list : ((MultipartHttpServletRequest) request).getMultiFileMap().values()) {
+					for (MultipartFile file : list) {
+						if (file != null && !file.isEmpty()) {
+							files.add(file);
+							totalSize += file.getSize();
+						}
+					}
+				}
+				String func = request.getParameter("func");
+				FileConfigInfo config = fileSvc.getFileConfig(group, func);
+				if (config == null) {
+					throw new BusinessException("invalid group:" + group);
+				}
+				// checkSize只能按Content-Length检查，分块传输（没有Content-Length）的请求在这里按实际大小检查
+				if (config.getMaxTotalSize() != null && totalSize > config.getMaxTotalSize()) {
+					logger.warn("batch upload exceed max size:{} for appId:{} and function:{}",
+							config.getMaxTotalSize(), group, func);
+					throw new BusinessException("upload exceed max size:" + config.getMaxTotalSize());
+				}
+				results = fileSvc.storeFiles(files, group);
+			} else if (multipartResolver.isStreamingUpload(request)) {
+				// 流式上传时part只能按顺序读取，逐个保存
+				FileItemIterator iter = multipartResolver.getItemIterator(request);
+				while (iter.hasNext()) {
+					FileItemStream item = iter.next();
+					if (item.isFormField() || !StringUtils.hasText(item.getName())) {
+						continue;
+					}
+					FileResult result = new FileResult(group, null, FilenameUtils.getName(item.getName()));
+					try {
+						result.setFileName(fileSvc.storeFile(item.openStream(), item.getName(), group));
+						result.setSuccess(true);
+					} catch (Exception e) {
+						result.setMsg(e.getMessage());
+					}
+					results.add(result);
+				}
+			}
+		} catch (BusinessException e) {
+			throw e;
+		} catch (Exception e) {
+			this.logger.warn("failed upload file", e);
+			throw new BusinessException("failed upload file");
+		}
+
+		for (FileResult result : results) {
+			if (result.isSuccess()) {
+				result.setUrl(FileClientUtil.constructFilePathV1(group, result.getFileName(), result.getOrgFileName()));
+			}
+		}
+		AjaxResult<List<FileResult>> ret = AjaxResult.create(true);
+		ret.setObj(results);
+		return ret;
+	}
+
 	@RequestMapping(value = "/file/v1/{group}/download/{fileName}", method = { RequestMethod.GET })
 	public void downloadFileV1(HttpServletRequest request, HttpServletResponse response, @PathVariable String fileName,
 			@PathVariable String group) throws BusinessException {
 		// 通过注解获取fileName时无法获取后缀
 		String servletPath = request.getServletPath();
 		FileInfo fileInfo = FileClientUtil.parseFilePathV1(servletPath);
-		downloadFileV1Internal(response, group, fileInfo.getFileName(), null);
+		downloadFileV1Internal(request, response, group, fileInfo.getFileName(), null);
 	}
 
 	@RequestMapping(value = "/file/v1/{group}/download/{fileName}/{refName}", method = { RequestMethod.GET })
@@ -102,31 +237,161 @@ public class FileController extends AbstractWebController {
 		// 通过注解获取refName时无法获取后缀
 		String servletPath = request.getServletPath();
 		FileInfo fileInfo = FileClientUtil.parseFilePathV1(servletPath);
-		downloadFileV1Internal(response, group, fileName, fileInfo.getOrgFileName());
+		downloadFileV1Internal(request, response, group, fileName, fileInfo.getOrgFileName());
 	}
 
-	private void downloadFileV1Internal(HttpServletResponse response, String group, String fileName, String refName)
-			throws BusinessException {
+	/**
+	 * 获取图片的缩略图：按比例缩小到不超过w×h（不放大），PNG和GIF生成PNG，其它生成JPEG；
+	 * 缩略图生成一次后保存在分组中，Content-Type和下载文件名的后缀按缩略图的格式，其它响应头与下载原文件相同
+	 * 
+	 * @param group
+	 * @param fileName
+	 * @param w
+	 *            最大宽度，为空时按高度等比缩放
+	 * @param h
+	 *            最大高度，为空时按宽度等比缩放
+	 * @param q
+	 *            JPEG质量（1~100）
+	 */
+	@RequestMapping(value = "/file/v1/{group}/thumbnail/{fileName:.+}", method = { RequestMethod.GET })
+	public void thumbnailV1(HttpServletRequest request, HttpServletResponse response, @PathVariable String group,
+			@PathVariable String fileName, @RequestParam(required = false) Integer w,
+			@RequestParam(required = false) Integer h, @RequestParam(defaultValue = "80") int q) {
+		response.setCharacterEncoding("utf-8");
+		try {
+			File thumbnail = fileSvc.getThumbnail(fileName, group, w, h, q);
+			if (thumbnail != null) {
+				setContentDisposition(response, FilenameUtils.getBaseName(fileName) + "."
+						+ FilenameUtils.getExtension(thumbnail.getName()));
+				fileDownloader.download(request, response, thumbnail, fileSvc.getThumbnailContentType(thumbnail),
+						group, fileSvc.getFileConfig(group));
+			} else {
+				logger.warn("no file:{} found in group:{}", fileName, group);
+				response.setStatus(HttpStatus.NOT_FOUND.value());
+			}
+		} catch (BusinessException e) {
+			logger.warn("invalid thumbnail request for file:{} in group:{}: {}", fileName, group, e.getMessage());
+			response.setStatus(HttpStatus.BAD_REQUEST.value());
+		} catch (SystemException e) {
+			// 缩略图线程池已满或生成超时
+			logger.warn("failed to generate thumbnail of file:{} in group:{}", fileName, group, e);
+			response.setStatus(HttpStatus.SERVICE_UNAVAILABLE.value());
+			response.setHeader(HttpHeaders.RETRY_AFTER, "1");
+		} catch (Exception e) {
+			logger.warn("failed when download thumbnail of file:{} in group:{}", fileName, group, e);
+			response.setStatus(HttpStatus.NOT_FOUND.value());
+		}
+	}
+
+	/**
+	 * 将多个文件打包成ZIP下载，边读取文件边输出，不生成临时文件；文件名为orgFileName，为空时使用fileName，重名时自动加序号
+	 * 
+	 * @param fileInfos
+	 *            要打包的文件（group、fileName、orgFileName）
+	 * @param name
+	 *            下载的ZIP文件名
+	 */
+	@RequestMapping(value = "/file/v1/archive", method = { RequestMethod.POST })
+	public void archiveV1(HttpServletResponse response, @RequestBody List<FileInfo> fileInfos,
+			@RequestParam(defaultValue = "files.zip") String name) {
+		if (fileInfos.isEmpty() || fileInfos.size() > zipArchiver.getMaxEntries()) {
+			logger.warn("invalid archive request with {} files", fileInfos.size());
+			response.setStatus(HttpStatus.BAD_REQUEST.value());
+			return;
+		}
+		// 开始输出前确认所有文件都存在，输出开始后无法再返回错误状态
+		List<ZipArchiver.Entry> entries = new ArrayList<>();
+		Set<String> groups = new HashSet<>();
+		for (FileInfo fileInfo : fileInfos) {
+			File file = null;
+			try {
+				file = fileSvc.getFile(fileInfo.getFileName(), fileInfo.getGroup());
+			} catch (Exception e) {
+				logger.warn("failed to get file:{} in group:{}", fileInfo.getFileName(), fileInfo.getGroup(), e);
+			}
+			if (file == null || !file.exists()) {
+				logger.warn("no file:{} found in group:{}", fileInfo.getFileName(), fileInfo.getGroup());
+				response.setStatus(HttpStatus.NOT_FOUND.value());
+				return;
+			}
+			groups.add(fileInfo.getGroup());
+			entries.add(new ZipArchiver.Entry(fileInfo.getGroup(), file,
+					StringUtils.isEmpty(fileInfo.getOrgFileName()) ? fileInfo.getFileName() : fileInfo.getOrgFileName()));
+		}
+		// 打包下载占用涉及的每个分组的传输名额，与单文件下载一样计入并发限制和正在进行的下载数
+		TransferLimiter.Permit permit;
+		try {
+			permit = transferLimiter.acquire(groups);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			response.setStatus(HttpStatus.SERVICE_UNAVAILABLE.value());
+			return;
+		}
+		if (permit == null) {
+			logger.warn("too many transfers in groups:{}, reject archive:{}", groups, name);
+			response.setStatus(HttpStatus.TOO_MANY_REQUESTS.value());
+			response.setHeader(HttpHeaders.RETRY_AFTER, String.valueOf(retryAfter));
+			return;
+		}
+		long start = transferMetrics.begin(TransferMetrics.DOWNLOAD);
 		response.setCharacterEncoding("utf-8");
-		String dFileName = (StringUtils.isEmpty(refName) ? fileName : refName);
+		response.setContentType("application/zip");
+		setContentDisposition(response, name);
+		try {
+			zipArchiver.write(entries, response.getOutputStream());
+		} catch (Exception e) {
+			logger.warn("failed when download archive:{} of {} files", name, entries.size(), e);
+		} finally {
+			permit.release();
+			transferMetrics.end(TransferMetrics.DOWNLOAD, start);
+		}
+	}
+
+	private void setContentDisposition(HttpServletResponse response, String dFileName) {
 		try {
 			response.setHeader("Content-Disposition", "attachment;fileName=" + URLEncoder.encode(dFileName, "UTF-8"));
 		} catch (Exception e) {
 			response.setHeader("Content-Disposition",
 					"attachment;fileName=file." + FilenameUtils.getExtension(dFileName));
 		}
+	}
+
+	private void downloadFileV1Internal(HttpServletRequest request, HttpServletResponse response, String group,
+			String fileName, String refName) throws BusinessException {
+		response.setCharacterEncoding("utf-8");
 
 		try {
-			File file = fileSvc.getFile(fileName, group);
-			if (file.exists()) {
-				InputStream inputStream = new FileInputStream(file);
-				OutputStream os = response.getOutputStream();
-				byte[] b = new byte[1024];
-				int length;
-				while ((length = inputStream.read(b)) > 0) {
-					os.write(b, 0, length);
+			long start = System.nanoTime();
+			FileMetadata metadata = fileSvc.getMetadata(fileName, group);
+			if (metadata != null) {
+				// 文件在元数据索引中时，响应头由元数据生成，未指定下载文件名时使用原始文件名
+				File file = fileSvc.getFile(metadata);
+				FileConfigInfo config = fileSvc.getFileConfig(group);
+				transferMetrics.recordTime(TransferMetrics.DOWNLOAD_CONFIG, start);
+				setContentDisposition(response, StringUtils.hasText(refName) ? refName
+						: StringUtils.hasText(metadata.getOrgFileName()) ? metadata.getOrgFileName() : fileName);
+				start = System.nanoTime();
+				try {
+					fileDownloader.download(request, response, file, metadata, group, config);
+				} catch (NoSuchFileException e) {
+					// 删除记录未写入硬盘（如异常重启）时索引中可能还有已删除的文件
+					logger.warn("file:{} in group:{} not exist, remove stale metadata", fileName, group);
+					fileSvc.removeMetadata(fileName, group);
+					response.reset();
+					response.setStatus(HttpStatus.NOT_FOUND.value());
+					return;
 				}
-				inputStream.close();
+				transferMetrics.recordTime(TransferMetrics.DOWNLOAD_WRITE, start);
+				return;
+			}
+			File file = fileSvc.getFile(fileName, group);
+			FileConfigInfo config = fileSvc.getFileConfig(group);
+			transferMetrics.recordTime(TransferMetrics.DOWNLOAD_CONFIG, start);
+			setContentDisposition(response, StringUtils.isEmpty(refName) ? fileName : refName);
+			if (file != null && file.exists()) {
+				start = System.nanoTime();
+				fileDownloader.download(request, response, file, group, config);
+				transferMetrics.recordTime(TransferMetrics.DOWNLOAD_WRITE, start);
 			} else {
 				logger.warn("no file:{} found in group:{}", fileName, group);
 				response.setStatus(HttpStatus.NOT_FOUND.value());
@@ -137,6 +402,41 @@ public class FileController extends AbstractWebController {
 		}
 	}
 
+	/**
+	 * 分页列出分组中的文件及其大小和修改时间，按路径排序
+	 * 
+	 * @param group
+	 * @param cursor
+	 *            上一页返回的nextCursor，为空时从头开始
+	 * @param limit
+	 *            每页最多返回的文件数
+	 * @param prefix
+	 *            文件名前缀
+	 * @param ext
+	 *            文件后缀，多个用逗号分隔
+	 * @param modifiedAfter
+	 *            只列出在该时间（毫秒）之后修改的文件
+	 * @param modifiedBefore
+	 *            只列出在该时间（毫秒）之前修改的文件
+	 * @return 一页文件，nextCursor为空时表示没有更多文件
+	 */
+	@RequestMapping(value = "/file/v1/{group}/list", method = { RequestMethod.GET })
+	@ResponseBody
+	public AjaxResult<FileListPage> listFiles(@PathVariable String group,
+			@RequestParam(required = false) String cursor, @RequestParam(defaultValue = "100") int limit,
+			@RequestParam(required = false) String prefix, @RequestParam(required = false) String ext,
+			@RequestParam(required = false) Long modifiedAfter, @RequestParam(required = false) Long modifiedBefore) {
+		AjaxResult<FileListPage> ret = null;
+		try {
+			ret = AjaxResult.create(true);
+			ret.setObj(fileSvc.listFiles(group, cursor, limit, prefix, ext, modifiedAfter, modifiedBefore));
+		} catch (Exception e) {
+			logger.warn("failed to list files of group:{} from cursor:{}", group, cursor, e);
+			ret = AjaxResult.create(false, e.getMessage());
+		}
+		return ret;
+	}
+
 	@RequestMapping(value = "/file/delete", method = RequestMethod.POST)
 	@ResponseBody
 	public AjaxResult<?> deleteFile(@RequestBody FileInfo fileInfo) throws SystemException {
@@ -151,6 +451,20 @@ public class FileController extends AbstractWebController {
 		return ret;
 	}
 
+	@RequestMapping(value = "/file/batchdelete", method = RequestMethod.POST)
+	@ResponseBody
+	public AjaxResult<List<FileResult>> deleteFiles(@RequestBody List<FileInfo> fileInfos) {
+		AjaxResult<List<FileResult>> ret = null;
+		try {
+			ret = AjaxResult.create(true);
+			ret.setObj(fileSvc.deleteFiles(fileInfos));
+		} catch (Exception e) {
+			logger.warn("failed to delete files:{}", fileInfos, e);
+			ret = AjaxResult.create(false, e.getMessage());
+		}
+		return ret;
+	}
+
 	@RequestMapping(value = "/file/switchgroup", method = RequestMethod.POST)
 	@ResponseBody
 	public AjaxResult<?> switchFileGroup(@RequestBody FileInfo fileInfo, @RequestParam String targetGroup) {
@@ -165,4 +479,19 @@ public class FileController extends AbstractWebController {
 		return ret;
 	}
 
+	@RequestMapping(value = "/file/batchswitchgroup", method = RequestMethod.POST)
+	@ResponseBody
+	public AjaxResult<List<FileResult>> switchFileGroups(@RequestBody List<FileInfo> fileInfos,
+			@RequestParam String targetGroup) {
+		AjaxResult<List<FileResult>> ret = null;
+		try {
+			ret = AjaxResult.create(true);
+			ret.setObj(fileSvc.switchFileGroups(fileInfos, targetGroup));
+		} catch (Exception e) {
+			logger.warn("failed to switch files:{} to group:{}", fileInfos, targetGroup, e);
+			ret = AjaxResult.create(false, e.getMessage());
+		}
+		return ret;
+	}
+
 }
@@ -0,0 +1,432 @@
+package com.akcome.file.srv;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import javax.annotation.PostConstruct;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpRange;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Component;
+import org.springframework.util.StringUtils;
+import org.springframework.web.context.request.ServletWebRequest;
+
+import com.akcome.file.config.FileConfigInfo;
+
+/**
+ * 文件下载引擎：大文件优先交给tomcat的sendfile（零拷贝）输出，不支持时使用池化的直接内存缓冲区拷贝；
+ * 支持Range请求（单区间及多区间）、If-Range以及基于ETag/Last-Modified的条件请求（304）；
+ * 开启小文件缓存时，已缓存的文件直接从内存输出；开启异步输出时，不使用sendfile的单区间请求由专用的IO线程池输出；
+ * 分组配置了压缩类型时，接受gzip的完整文件请求输出预压缩的文件
+ */
+@Component
+public class FileDownloader {
+	private static final String SENDFILE_SUPPORT = "org.apache.tomcat.sendfile.support";
+	private static final String SENDFILE_FILENAME = "org.apache.tomcat.sendfile.filename";
+	private static final String SENDFILE_START = "org.apache.tomcat.sendfile.start";
+	private static final String SENDFILE_END = "org.apache.tomcat.sendfile.end";
+	private static final String DEFAULT_CONTENT_TYPE = "application/octet-stream";
+	private static final String BYTES_UNIT = "bytes";
+	private static final String CRLF = "\r\n";
+	private final Logger logger = LoggerFactory.getLogger(getClass());
+	@Value("${fs.download.sendfile-min-size:49152}")
+	private long sendfileMinSize;
+	@Value("${fs.download.buffer-size:65536}")
+	private int bufferSize;
+	@Value("${fs.download.buffer-count:64}")
+	private int bufferCount;
+	@Value("${fs.download.max-ranges:16}")
+	private int maxRanges;
+	private BlockingQueue<ByteBuffer> bufferPool;
+	@Autowired
+	private HotFileCache hotFileCache;
+	@Autowired
+	private AsyncFileWriter asyncFileWriter;
+	@Autowired
+	private TransferLimiter transferLimiter;
+	@Autowired
+	private TransferMetrics transferMetrics;
+	@Autowired
+	private CompressedVariants compressedVariants;
+
+	@PostConstruct
+	public void init() {
+		bufferPool = new ArrayBlockingQueue<>(bufferCount);
+	}
+
+	/**
+	 * 将文件输出到response中，设置Content-Type和Content-Length；当请求中带有有效的Range头时，返回206及对应的区间；
+	 * 当请求的ETag或修改时间与文件一致时，直接返回304，不打开文件
+	 *
+	 * @param request
+	 * @param response
+	 * @param file
+	 *            要下载的文件
+	 * @param group
+	 *            文件分组，用于限制带宽
+	 * @param config
+	 *            文件所在分组的配置信息
+	 * @throws IOException
+	 */
+	public void download(HttpServletRequest request, HttpServletResponse response, File file, String group,
+			FileConfigInfo config) throws IOException {
+		download(request, response, file, file.length(), file.lastModified(), getContentType(request, file), group,
+				config);
+	}
+
+	/**
+	 * 同download(HttpServletRequest, HttpServletResponse, File, String, FileConfigInfo)，使用指定的Content-Type
+	 *
+	 * @param contentType
+	 *            文件的MIME类型
+	 */
+	public void download(HttpServletRequest request, HttpServletResponse response, File file, String contentType,
+			String group, FileConfigInfo config) throws IOException {
+		download(request, response, file, file.length(), file.lastModified(), contentType, group, config);
+	}
+
+	/**
+	 * 同download(HttpServletRequest, HttpServletResponse, File, String, FileConfigInfo)，
+	 * 文件大小、修改时间和类型取自元数据索引，HEAD请求和返回304的条件请求完全不访问文件
+	 *
+	 * @param metadata
+	 *            文件的元数据
+	 * @throws NoSuchFileException
+	 *             需要输出内容时文件已不存在（元数据索引中的记录已过期），此时还没有输出任何内容
+	 */
+	public void download(HttpServletRequest request, HttpServletResponse response, File file, FileMetadata metadata,
+			String group, FileConfigInfo config) throws IOException {
+		String contentType = StringUtils.isEmpty(metadata.getContentType()) ? DEFAULT_CONTENT_TYPE
+				: metadata.getContentType();
+		download(request, response, file, metadata.getSize(), metadata.getLastModified(), contentType, group, config);
+	}
+
+	private void download(HttpServletRequest request, HttpServletResponse response, File file, long length,
+			long lastModified, String contentType, String group, FileConfigInfo config) throws IOException {
+		if (compressedVariants.isCompressible(config, file.getName(), contentType, length)) {
+			// 同一地址按Accept-Encoding返回不同的内容；Range请求和HEAD请求始终按原文件处理，HEAD请求不访问压缩文件
+			response.addHeader(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING);
+			if (!isHead(request) && StringUtils.isEmpty(request.getHeader(HttpHeaders.RANGE))
+					&& compressedVariants.acceptsGzip(request)) {
+				// 压缩文件由原文件生成，ETag按原文件的大小和修改时间计算，返回304时不访问压缩文件
+				String etag = getETag(file.getName() + "-" + CompressedVariants.GZIP, length, lastModified);
+				setValidators(response, config, etag, lastModified);
+				if (new ServletWebRequest(request, response).checkNotModified(etag, lastModified)) {
+					return;
+				}
+				checkExists(file);
+				File variant = compressedVariants.get(file, lastModified);
+				if (variant != null) {
+					sendCompressed(request, response, variant, group, contentType);
+					return;
+				}
+				// 压缩文件尚未生成，按原文件处理
+			}
+		}
+		String etag = getETag(file.getName(), length, lastModified);
+		response.setHeader(HttpHeaders.ACCEPT_RANGES, BYTES_UNIT);
+		setValidators(response, config, etag, lastModified);
+		if (new ServletWebRequest(request, response).checkNotModified(etag, lastModified)) {
+			return;
+		}
+		if (isHead(request)) {
+			response.setContentType(contentType);
+			response.setContentLengthLong(length);
+			return;
+		}
+
+		checkExists(file);
+		ByteBuffer content = hotFileCache.get(file, length, lastModified);
+		List<HttpRange> ranges = null;
+		String rangeHeader = request.getHeader(HttpHeaders.RANGE);
+		if (StringUtils.hasText(rangeHeader) && "GET".equalsIgnoreCase(request.getMethod())
+				&& isIfRangeSatisfied(request, etag, lastModified)) {
+			try {
+				ranges = HttpRange.parseRanges(rangeHeader);
+			} catch (IllegalArgumentException e) {
+				logger.debug("invalid range header:{}", rangeHeader);
+				sendRangeNotSatisfiable(response, length);
+				return;
+			}
+			if (ranges.size() > maxRanges) {
+				// 区间过多时忽略Range头，返回完整文件
+				logger.warn("too many ranges:{} requested for file:{}, ignore", ranges.size(), file.getName());
+				ranges = null;
+			} else if (!isSatisfiable(ranges, length)) {
+				sendRangeNotSatisfiable(response, length);
+				return;
+			}
+		}
+
+		if (ranges == null || ranges.isEmpty()) {
+			response.setContentType(contentType);
+			sendRange(request, response, file, group, content, 0, length);
+		} else if (ranges.size() == 1) {
+			long start = ranges.get(0).getRangeStart(length);
+			long end = ranges.get(0).getRangeEnd(length);
+			response.setStatus(HttpStatus.PARTIAL_CONTENT.value());
+			response.setContentType(contentType);
+			response.setHeader(HttpHeaders.CONTENT_RANGE, contentRange(start, end, length));
+			sendRange(request, response, file, group, content, start, end - start + 1);
+		} else {
+			sendMultipartRanges(response, file, group, content, contentType, ranges, length);
+		}
+	}
+
+	/**
+	 * 输出内容之前确认文件存在，避免按过期的元数据设置Content-Length和sendfile后才发现文件不存在
+	 */
+	private void checkExists(File file) throws NoSuchFileException {
+		if (!file.isFile()) {
+			throw new NoSuchFileException(file.getPath());
+		}
+	}
+
+	/**
+	 * 输出预压缩的文件，ETag等校验头已由调用方设置
+	 */
+	private void sendCompressed(HttpServletRequest request, HttpServletResponse response, File variant,
+			String group, String contentType) throws IOException {
+		long length = variant.length();
+		response.setHeader(HttpHeaders.CONTENT_ENCODING, CompressedVariants.GZIP);
+		response.setContentType(contentType);
+		ByteBuffer content = hotFileCache.get(variant, length, variant.lastModified());
+		sendRange(request, response, variant, group, content, 0, length);
+	}
+
+	/**
+	 * 输出文件中从start开始的length个字节：未缓存、文件足够大、分组不限制带宽和并发数且容器支持时使用sendfile，
+	 * 其次异步输出，最后在当前线程中输出
+	 */
+	private void sendRange(HttpServletRequest request, HttpServletResponse response, File file, String group,
+			ByteBuffer content, long start, long length) throws IOException {
+		response.setContentLengthLong(length);
+		if (content == null && length >= sendfileMinSize && isSendfileSupported(request)
+				&& !transferLimiter.isLimited(group)) {
+			// 由tomcat在请求处理结束后直接通过sendfile输出文件内容
+			transferMetrics.addSendfileBytes(group, length);
+			request.setAttribute(SENDFILE_FILENAME, file.getCanonicalPath());
+			request.setAttribute(SENDFILE_START, Long.valueOf(start));
+			request.setAttribute(SENDFILE_END, Long.valueOf(start + length));
+			return;
+		}
+		transferMetrics.addDownloadBytes(group, length);
+		if (length > 0 && asyncFileWriter.isAsync(request)) {
+			asyncFileWriter.write(request, response, file, group, content, start, length);
+			return;
+		}
+		if (content != null) {
+			write(content, start, length, response.getOutputStream(), group);
+		} else {
+			copy(file, start, length, response.getOutputStream(), group);
+		}
+	}
+
+	/**
+	 * 以multipart/byteranges格式输出多个区间
+	 */
+	private void sendMultipartRanges(HttpServletResponse response, File file, String group, ByteBuffer content,
+			String contentType, List<HttpRange> ranges, long length) throws IOException {
+		String boundary = UUID.randomUUID().toString().replace("-", "");
+		response.setStatus(HttpStatus.PARTIAL_CONTENT.value());
+		response.setContentType("multipart/byteranges; boundary=" + boundary);
+		OutputStream os = response.getOutputStream();
+		for (HttpRange range : ranges) {
+			long start = range.getRangeStart(length);
+			long end = range.getRangeEnd(length);
+			StringBuilder header = new StringBuilder();
+			header.append(CRLF).append("--").append(boundary).append(CRLF);
+			header.append(HttpHeaders.CONTENT_TYPE).append(": ").append(contentType).append(CRLF);
+			header.append(HttpHeaders.CONTENT_RANGE).append(": ").append(contentRange(start, end, length))
+					.append(CRLF).append(CRLF);
+			os.write(header.toString().getBytes(StandardCharsets.US_ASCII));
+			transferMetrics.addDownloadBytes(group, end - start + 1);
+			if (content != null) {
+				write(content, start, end - start + 1, os, group);
+			} else {
+				copy(file, start, end - start + 1, os, group);
+			}
+		}
+		os.write((CRLF + "--" + boundary + "--" + CRLF).getBytes(StandardCharsets.US_ASCII));
+	}
+
+	/**
+	 * 判断If-Range条件是否成立，不成立时应忽略Range头返回完整文件
+	 */
+	private boolean isIfRangeSatisfied(HttpServletRequest request, String etag, long lastModified) {
+		String ifRange = request.getHeader(HttpHeaders.IF_RANGE);
+		if (StringUtils.isEmpty(ifRange)) {
+			return true;
+		}
+		if (ifRange.startsWith("\"") || ifRange.startsWith("W/")) {
+			// If-Range只允许强校验，弱ETag永远不匹配
+			return ifRange.equals(etag);
+		}
+		try {
+			long since = request.getDateHeader(HttpHeaders.IF_RANGE);
+			return since >= 0 && lastModified / 1000 == since / 1000;
+		} catch (IllegalArgumentException e) {
+			return false;
+		}
+	}
+
+	private boolean isSatisfiable(List<HttpRange> ranges, long length) {
+		for (HttpRange range : ranges) {
+			if (length == 0 || range.getRangeStart(length) >= length
+					|| range.getRangeStart(length) > range.getRangeEnd(length)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private void sendRangeNotSatisfiable(HttpServletResponse response, long length) {
+		response.setStatus(HttpStatus.REQUESTED_RANGE_NOT_SATISFIABLE.value());
+		response.setHeader(HttpHeaders.CONTENT_RANGE, BYTES_UNIT + " */" + length);
+	}
+
+	/**
+	 * 生成强ETag：上传后的文件名（UUID）唯一标识文件，再加上文件大小和修改时间，文件被替换时ETag随之变化
+	 */
+	public String getETag(String fileName, long length, long lastModified) {
+		return "\"" + fileName + "-" + Long.toHexString(length) + "-" + Long.toHexString(lastModified) + "\"";
+	}
+
+	/**
+	 * 设置Cache-Control、ETag和Last-Modified；先按压缩文件设置后又按原文件处理时覆盖
+	 */
+	private void setValidators(HttpServletResponse response, FileConfigInfo config, String etag, long lastModified) {
+		setCacheControl(response, config);
+		response.setHeader(HttpHeaders.ETAG, etag);
+		response.setDateHeader(HttpHeaders.LAST_MODIFIED, lastModified);
+	}
+
+	private void setCacheControl(HttpServletResponse response, FileConfigInfo config) {
+		if (config == null || config.getCacheMaxAge() == null || config.getCacheMaxAge() <= 0) {
+			response.setHeader(HttpHeaders.CACHE_CONTROL, "no-cache");
+		} else {
+			String scope = Boolean.TRUE.equals(config.getValidateUser()) ? "private" : "public";
+			response.setHeader(HttpHeaders.CACHE_CONTROL, scope + ", max-age=" + config.getCacheMaxAge());
+		}
+	}
+
+	private String contentRange(long start, long end, long length) {
+		return BYTES_UNIT + " " + start + "-" + end + "/" + length;
+	}
+
+	/**
+	 * 使用池化的直接内存缓冲区，将文件从position开始的length个字节写入输出流
+	 *
+	 * @param file
+	 *            源文件
+	 * @param position
+	 *            起始位置
+	 * @param length
+	 *            要写入的字节数
+	 * @param os
+	 *            输出流
+	 * @throws IOException
+	 */
+	public void copy(File file, long position, long length, OutputStream os) throws IOException {
+		copy(file, position, length, os, null);
+	}
+
+	/**
+	 * 同copy(File, long, long, OutputStream)，每次写入前按分组带宽限制等待
+	 */
+	private void copy(File file, long position, long length, OutputStream os, String group) throws IOException {
+		ByteBuffer buffer = acquireBuffer();
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			WritableByteChannel out = Channels.newChannel(os);
+			long remaining = length;
+			while (remaining > 0) {
+				buffer.clear();
+				if (remaining < buffer.capacity()) {
+					buffer.limit((int) remaining);
+				}
+				int read = channel.read(buffer, position);
+				if (read < 0) {
+					logger.warn("file:{} truncated while downloading, {} bytes missing", file.getName(), remaining);
+					break;
+				}
+				buffer.flip();
+				transferLimiter.throttle(group, read);
+				while (buffer.hasRemaining()) {
+					out.write(buffer);
+				}
+				position += read;
+				remaining -= read;
+			}
+		} finally {
+			releaseBuffer(buffer);
+		}
+	}
+
+	/**
+	 * 将缓存的文件内容从position开始的length个字节写入输出流，每次写入一个缓冲区大小并按分组带宽限制等待
+	 */
+	private void write(ByteBuffer content, long position, long length, OutputStream os, String group)
+			throws IOException {
+		ByteBuffer buffer = content.duplicate();
+		WritableByteChannel out = Channels.newChannel(os);
+		long end = position + length;
+		while (position < end) {
+			int size = (int) Math.min(bufferSize, end - position);
+			buffer.limit((int) position + size).position((int) position);
+			transferLimiter.throttle(group, size);
+			while (buffer.hasRemaining()) {
+				out.write(buffer);
+			}
+			position += size;
+		}
+	}
+
+	public String getContentType(HttpServletRequest request, File file) {
+		String contentType = request.getServletContext().getMimeType(file.getName());
+		return StringUtils.isEmpty(contentType) ? DEFAULT_CONTENT_TYPE : contentType;
+	}
+
+	private boolean isHead(HttpServletRequest request) {
+		return "HEAD".equalsIgnoreCase(request.getMethod());
+	}
+
+	/**
+	 * 判断响应是否已交给sendfile输出，此时请求处理返回后容器才开始传输
+	 */
+	public static boolean isSendfile(HttpServletRequest request) {
+		return request.getAttribute(SENDFILE_FILENAME) != null;
+	}
+
+	public boolean isSendfileSupported(HttpServletRequest request) {
+		return Boolean.TRUE.equals(request.getAttribute(SENDFILE_SUPPORT));
+	}
+
+	private ByteBuffer acquireBuffer() {
+		ByteBuffer buffer = bufferPool.poll();
+		return buffer == null ? ByteBuffer.allocateDirect(bufferSize) : buffer;
+	}
+
+	private void releaseBuffer(ByteBuffer buffer) {
+		// 池已满时丢弃，由GC回收
+		bufferPool.offer(buffer);
+	}
+}
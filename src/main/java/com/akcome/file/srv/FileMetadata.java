@@ -0,0 +1,29 @@
+package com.akcome.file.srv;
+
+import lombok.Data;
+
+/**
+ * 文件元数据，保存在元数据索引中，下载时用于生成响应头
+ */
+@Data
+public class FileMetadata {
+	private String group;
+	/** 文件保存在硬盘中的文件名 */
+	private String fileName;
+	/** 相对于分组文件夹的路径（包括分桶文件夹），以/分隔 */
+	private String path;
+	/** 原始文件名 */
+	private String orgFileName;
+	private long size;
+	/** 文件的修改时间，与ETag和Last-Modified一致 */
+	private long lastModified;
+	/** 保存到分组的时间 */
+	private long createTime;
+	private String contentType;
+	/** 文件内容的校验值，格式为算法:十六进制值，如sha256:...、crc32:...；保存时未读取内容的为空 */
+	private String checksum;
+
+	public String getKey() {
+		return group + "/" + fileName;
+	}
+}
@@ -0,0 +1,422 @@
+package com.akcome.file.srv;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.servlet.ServletContext;
+
+import org.apache.commons.io.FileUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.util.StringUtils;
+
+/**
+ * 本节点的文件元数据索引：元数据以追加方式写入数据根目录下的.meta/metadata.log，P记录保存元数据，D记录表示删除；
+ * 内存中只保存每个文件最新P记录在日志中的位置，查询时按位置读取一条记录（通常命中page cache），不访问文件本身。
+ * 索引建立之前保存的文件不在索引中，调用方应回退到文件系统查询。日志中已失效的记录过多时重写为只包含有效记录的新日志
+ */
+@Component
+public class FileMetadataIndex implements PublicMetrics {
+	private static final String INDEX_FILE = "metadata.log";
+	private static final String PUT = "P";
+	private static final String DELETE = "D";
+	private static final int PUT_FIELDS = 10;
+	private static final int MAX_RECORD_LENGTH = 0xFFFF;
+	private static final int MAX_NAME_LENGTH = 255;
+	private final Logger logger = LoggerFactory.getLogger(getClass());
+	@Value("${fs.dir}")
+	private String fileDir;
+	@Value("${fs.meta.enabled:true}")
+	private boolean enabled;
+	@Value("${fs.meta.sync:false}")
+	private boolean sync;
+	@Value("${fs.meta.compact-threshold:100000}")
+	private int compactThreshold;
+	@Autowired(required = false)
+	private ServletContext servletContext;
+	private File indexFile;
+	/** 分组/文件名到最新P记录的位置，高48位为偏移量，低16位为记录长度（不含换行） */
+	private final Map<String, Long> locationMap = new ConcurrentHashMap<>();
+	/** 读取记录时持有读锁，追加和压缩时持有写锁 */
+	private final ReadWriteLock lock = new ReentrantReadWriteLock();
+	private FileChannel channel;
+	private long logSize;
+	/** 当前日志文件中的记录数 */
+	private long recordCount;
+	private final AtomicLong hitCount = new AtomicLong();
+	private final AtomicLong missCount = new AtomicLong();
+
+	@PostConstruct
+	public void init() throws IOException {
+		if (!enabled) {
+			return;
+		}
+		File dir = new File(fileDir, ".meta");
+		FileUtils.forceMkdir(dir);
+		indexFile = new File(dir, INDEX_FILE);
+		replay();
+		if (recordCount > locationMap.size()) {
+			compact();
+		}
+	}
+
+	@PreDestroy
+	public void destroy() {
+		lock.writeLock().lock();
+		try {
+			closeChannel();
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * 保存文件的元数据，已存在时覆盖
+	 */
+	public void put(FileMetadata metadata) {
+		if (!enabled) {
+			return;
+		}
+		if (!isValid(metadata.getGroup()) || !isValid(metadata.getFileName()) || !isValid(metadata.getPath())) {
+			logger.warn("invalid file name:{}, skip metadata", metadata.getFileName());
+			return;
+		}
+		byte[] record = toRecord(metadata).getBytes(StandardCharsets.UTF_8);
+		if (record.length > MAX_RECORD_LENGTH) {
+			logger.warn("metadata of file:{} too long, skip", metadata.getFileName());
+			return;
+		}
+		lock.writeLock().lock();
+		try {
+			long offset = append(record);
+			locationMap.put(metadata.getKey(), offset << 16 | record.length);
+		} catch (IOException e) {
+			logger.warn("failed to write metadata of file:{}", metadata.getFileName(), e);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * 获取文件的元数据
+	 *
+	 * @param group
+	 *            文件分组
+	 * @param fileName
+	 *            文件名
+	 * @return 文件不在索引中时返回null
+	 */
+	public FileMetadata get(String group, String fileName) {
+		if (!enabled) {
+			return null;
+		}
+		lock.readLock().lock();
+		try {
+			Long location = locationMap.get(group + "/" + fileName);
+			if (location == null) {
+				missCount.incrementAndGet();
+				return null;
+			}
+			FileMetadata metadata = parse(read(location));
+			if (metadata == null) {
+				missCount.incrementAndGet();
+				return null;
+			}
+			hitCount.incrementAndGet();
+			return metadata;
+		} catch (IOException e) {
+			logger.warn("failed to read metadata of file:{} in group:{}", fileName, group, e);
+			return null;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * 删除文件的元数据
+	 *
+	 * @param group
+	 *            文件分组
+	 * @param fileName
+	 *            文件名
+	 */
+	public void remove(String group, String fileName) {
+		String key = group + "/" + fileName;
+		if (!enabled || !locationMap.containsKey(key)) {
+			return;
+		}
+		lock.writeLock().lock();
+		try {
+			if (locationMap.remove(key) != null) {
+				append((DELETE + "\t" + group + "\t" + fileName).getBytes(StandardCharsets.UTF_8));
+			}
+		} catch (IOException e) {
+			logger.warn("failed to write metadata of file:{}", fileName, e);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * 生成新保存文件的元数据，MIME类型按文件名获取
+	 *
+	 * @param group
+	 *            文件分组
+	 * @param dir
+	 *            分组文件夹
+	 * @param file
+	 *            已保存的文件
+	 * @param orgFileName
+	 *            原始文件名
+	 * @param checksum
+	 *            文件内容的校验值，未计算时为null
+	 */
+	public FileMetadata newMetadata(String group, File dir, File file, String orgFileName, String checksum) {
+		FileMetadata metadata = new FileMetadata();
+		metadata.setGroup(group);
+		metadata.setFileName(file.getName());
+		metadata.setPath(getPath(dir, file));
+		metadata.setOrgFileName(orgFileName);
+		metadata.setSize(file.length());
+		metadata.setLastModified(file.lastModified());
+		metadata.setCreateTime(System.currentTimeMillis());
+		metadata.setContentType(servletContext == null ? null : servletContext.getMimeType(file.getName()));
+		metadata.setChecksum(checksum);
+		return metadata;
+	}
+
+	/**
+	 * 文件在分组文件夹中的相对路径，以/分隔
+	 */
+	public String getPath(File dir, File file) {
+		return dir.toPath().relativize(file.toPath()).toString().replace(File.separatorChar, '/');
+	}
+
+	/**
+	 * 日志中已失效的记录过多时压缩日志
+	 */
+	@Scheduled(fixedDelayString = "${fs.meta.compact-interval:600000}")
+	public void compactIfNeeded() {
+		if (enabled && recordCount > compactThreshold && recordCount > locationMap.size() * 2L) {
+			try {
+				compact();
+			} catch (IOException e) {
+				logger.warn("failed to compact metadata index", e);
+			}
+		}
+	}
+
+	@Override
+	public Collection<Metric<?>> metrics() {
+		List<Metric<?>> metrics = new ArrayList<>();
+		metrics.add(new Metric<Integer>("fs.meta.entries", locationMap.size()));
+		metrics.add(new Metric<Long>("fs.meta.hits", hitCount.get()));
+		metrics.add(new Metric<Long>("fs.meta.misses", missCount.get()));
+		metrics.add(new Metric<Long>("fs.meta.log-size", logSize));
+		return metrics;
+	}
+
+	/**
+	 * 在日志末尾追加一条记录，调用方持有写锁
+	 *
+	 * @return 记录在日志中的偏移量
+	 */
+	private long append(byte[] record) throws IOException {
+		if (channel == null) {
+			openChannel();
+		}
+		long offset = logSize;
+		ByteBuffer buffer = ByteBuffer.allocate(record.length + 1);
+		buffer.put(record).put((byte) '\n').flip();
+		while (buffer.hasRemaining()) {
+			channel.write(buffer, logSize + buffer.position());
+		}
+		if (sync) {
+			channel.force(false);
+		}
+		logSize += record.length + 1;
+		recordCount++;
+		return offset;
+	}
+
+	private String read(long location) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate((int) (location & MAX_RECORD_LENGTH));
+		long offset = location >>> 16;
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, offset + buffer.position()) < 0) {
+				throw new IOException("metadata index truncated");
+			}
+		}
+		return new String(buffer.array(), StandardCharsets.UTF_8);
+	}
+
+	private void replay() throws IOException {
+		if (!indexFile.exists()) {
+			return;
+		}
+		long start = System.currentTimeMillis();
+		long offset = 0;
+		try (InputStream in = new BufferedInputStream(Files.newInputStream(indexFile.toPath()), 65536)) {
+			ByteArrayOutputStream line = new ByteArrayOutputStream(256);
+			for (int b; (b = in.read()) >= 0;) {
+				if (b != '\n') {
+					line.write(b);
+					continue;
+				}
+				String record = new String(line.toByteArray(), StandardCharsets.UTF_8);
+				String[] fields = record.split("\t", -1);
+				if (PUT.equals(fields[0]) && parse(record) != null && line.size() <= MAX_RECORD_LENGTH) {
+					locationMap.put(fields[1] + "/" + fields[2], offset << 16 | line.size());
+				} else if (DELETE.equals(fields[0]) && fields.length == 3) {
+					locationMap.remove(fields[1] + "/" + fields[2]);
+				} else {
+					logger.warn("invalid metadata record:{}, skip", record);
+				}
+				offset += line.size() + 1;
+				recordCount++;
+				line.reset();
+			}
+			if (line.size() > 0) {
+				// 最后一条记录可能因宕机只写了一半，截断后继续追加
+				logger.warn("incomplete metadata record at {}, truncate", offset);
+			}
+		}
+		logSize = offset;
+		openChannel();
+		if (channel.size() > logSize) {
+			channel.truncate(logSize);
+		}
+		logger.info("replayed metadata index in {} ms, {} files", System.currentTimeMillis() - start,
+				locationMap.size());
+	}
+
+	/**
+	 * 将有效记录写入新日志文件并原子替换旧日志
+	 */
+	private void compact() throws IOException {
+		lock.writeLock().lock();
+		try {
+			if (channel == null) {
+				openChannel();
+			}
+			File tmpFile = new File(indexFile.getParentFile(), INDEX_FILE + ".compact");
+			Map<String, Long> compacted = new HashMap<>(locationMap.size() * 2);
+			long offset = 0;
+			try (FileChannel out = FileChannel.open(tmpFile.toPath(), StandardOpenOption.CREATE,
+					StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+				ByteBuffer newline = ByteBuffer.allocate(1);
+				for (Map.Entry<String, Long> entry : locationMap.entrySet()) {
+					ByteBuffer record = ByteBuffer.wrap(read(entry.getValue()).getBytes(StandardCharsets.UTF_8));
+					int length = record.remaining();
+					while (record.hasRemaining()) {
+						out.write(record);
+					}
+					newline.clear();
+					newline.put((byte) '\n').flip();
+					out.write(newline);
+					compacted.put(entry.getKey(), offset << 16 | length);
+					offset += length + 1;
+				}
+				out.force(true);
+			}
+			closeChannel();
+			Files.move(tmpFile.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+			locationMap.putAll(compacted);
+			logSize = offset;
+			recordCount = compacted.size();
+			openChannel();
+			logger.info("compacted metadata index, {} files", compacted.size());
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	private void openChannel() throws IOException {
+		channel = FileChannel.open(indexFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+				StandardOpenOption.WRITE);
+	}
+
+	private void closeChannel() {
+		if (channel != null) {
+			try {
+				channel.close();
+			} catch (IOException e) {
+				logger.warn("failed to close metadata index", e);
+			}
+			channel = null;
+		}
+	}
+
+	private static String toRecord(FileMetadata metadata) {
+		String orgFileName = metadata.getOrgFileName();
+		if (orgFileName != null && orgFileName.length() > MAX_NAME_LENGTH) {
+			orgFileName = orgFileName.substring(0, MAX_NAME_LENGTH);
+		}
+		return PUT + "\t" + metadata.getGroup() + "\t" + metadata.getFileName() + "\t" + metadata.getPath() + "\t"
+				+ metadata.getSize() + "\t" + metadata.getLastModified() + "\t" + metadata.getCreateTime() + "\t"
+				+ clean(metadata.getContentType()) + "\t" + clean(metadata.getChecksum()) + "\t" + clean(orgFileName);
+	}
+
+	/**
+	 * 解析P记录，格式无效（如只写了一半）时返回null
+	 */
+	private static FileMetadata parse(String record) {
+		String[] fields = record.split("\t", -1);
+		if (fields.length != PUT_FIELDS || !PUT.equals(fields[0])) {
+			return null;
+		}
+		try {
+			FileMetadata metadata = new FileMetadata();
+			metadata.setGroup(fields[1]);
+			metadata.setFileName(fields[2]);
+			metadata.setPath(fields[3]);
+			metadata.setSize(Long.parseLong(fields[4]));
+			metadata.setLastModified(Long.parseLong(fields[5]));
+			metadata.setCreateTime(Long.parseLong(fields[6]));
+			metadata.setContentType(StringUtils.isEmpty(fields[7]) ? null : fields[7]);
+			metadata.setChecksum(StringUtils.isEmpty(fields[8]) ? null : fields[8]);
+			metadata.setOrgFileName(StringUtils.isEmpty(fields[9]) ? null : fields[9]);
+			return metadata;
+		} catch (NumberFormatException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * 去掉会破坏记录格式的制表符和换行
+	 */
+	private static String clean(String value) {
+		return value == null ? "" : value.replace('\t', ' ').replace('\n', ' ').replace('\r', ' ');
+	}
+
+	private static boolean isValid(String value) {
+		return value != null && value.indexOf('\t') < 0 && value.indexOf('\n') < 0 && value.indexOf('\r') < 0;
+	}
+}
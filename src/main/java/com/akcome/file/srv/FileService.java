@@ -1,36 +1,103 @@
 package com.akcome.file.srv;
 
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.UUID;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.stream.Collectors;
 
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.FilenameUtils;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
 import org.springframework.stereotype.Service;
 import org.springframework.util.StringUtils;
 import org.springframework.web.multipart.MultipartFile;
 
+import com.akcome.common.exception.BusinessException;
 import com.akcome.common.exception.SystemException;
 import com.akcome.common.request.in.FileInfo;
+import com.akcome.file.client.FileListPage;
+import com.akcome.file.client.FileResult;
+import com.akcome.file.client.FileStat;
 import com.akcome.file.config.FileConfigInfo;
 
-import lombok.Data;
-
 @Service
 public class FileService extends AbstractFileService {
 	public static final String DEFAULT_GROUP = "tmp";
-	private Map<String, BlockingQueue<TmpFileInfo>> fileQueueMap = null;
+	private static final String SHA256 = "sha256:";
+	private static final String CRC32_FORMAT = "crc32:%08x";
+	@Value("${fs.io.threads:8}")
+	private int ioThreads;
+	@Value("${fs.io.queue-size:256}")
+	private int ioQueueSize;
+	private ExecutorService ioExecutor;
+	@Autowired
+	private BlobStore blobStore;
+	@Autowired
+	private TmpFileJournal journal;
+	@Autowired
+	private TmpFileExpirer expirer;
+	@Autowired
+	private HotFileCache hotFileCache;
+	@Autowired
+	private CompressedVariants compressedVariants;
+	@Autowired
+	private ThumbnailService thumbnailService;
+	@Autowired
+	private FileMetadataIndex metadataIndex;
+	@Autowired
+	private DirectoryLister directoryLister;
+	@Autowired
+	private StorageQuota storageQuota;
+	@Autowired
+	private TransferLimiter transferLimiter;
+	@Autowired
+	private TransferMetrics transferMetrics;
+	@Value("${fs.shard.migrate-batch:10000}")
+	private int shardMigrateBatch;
 
 	@PostConstruct
 	public void init() {
-		fileQueueMap = new HashMap<>();
+		// 恢复重启前未清理的零时文件
+		for (TmpFileInfo fileInfo : journal.getLiveFiles()) {
+			scheduleExpiry(fileInfo);
+		}
+		expirer.start(this::removeTmpFile);
+		storageQuota.start(this::getGroupDirs);
+		// 批量文件操作使用的有界IO线程池，队列满时由调用线程执行
+		ioExecutor = new ThreadPoolExecutor(ioThreads, ioThreads, 60, TimeUnit.SECONDS,
+				new ArrayBlockingQueue<>(ioQueueSize), new CustomizableThreadFactory("file-io-"),
+				new ThreadPoolExecutor.CallerRunsPolicy());
+	}
+
+	@PreDestroy
+	public void destroy() {
+		ioExecutor.shutdown();
 	}
 
 	/**
@@ -45,8 +112,26 @@ public class FileService extends AbstractFileService {
 		return storeFile(file, DEFAULT_GROUP);
 	}
 
+	private File getRootDir(String group) {
+		return new File(DEFAULT_GROUP.equalsIgnoreCase(group) ? fileTmpDir : fileDir);
+	}
+
 	private File getGroupDir(String group, FileConfigInfo config) {
-		return new File(DEFAULT_GROUP.equalsIgnoreCase(group) ? fileTmpDir : fileDir, config.getPath());
+		return new File(getRootDir(group), config.getPath());
+	}
+
+	/**
+	 * 获取当前所有分组的文件夹，用于校正分组用量
+	 */
+	private Map<String, File> getGroupDirs() {
+		Map<String, File> groupDirs = new HashMap<>();
+		for (String group : getAppIds()) {
+			FileConfigInfo config = getFileConfig(group);
+			if (config != null) {
+				groupDirs.put(group, getGroupDir(group, config));
+			}
+		}
+		return groupDirs;
 	}
 
 	/**
@@ -61,71 +146,236 @@ public class FileService extends AbstractFileService {
 	 */
 	public String storeFile(MultipartFile file, String group) throws SystemException {
 		try {
-			// 获取分组的配置信息
-			FileConfigInfo config = getFileConfig(group);
-			if (config == null) {
-				throw new SystemException("invalid group:" + group);
-			}
-			// 获取零时文件夹中该分组的文件夹
-			File dir = getGroupDir(group, config);
-			if (dir.exists() == false) {
-				if (dir.mkdirs() == false) {
-					throw new SystemException("failed to create folder:" + dir.getAbsolutePath());
-				}
-			}
-
-			// 将文件写入本地文件中
-			File rFile = null;
-			String fileName = null;
-			do {
-				fileName = UUID.randomUUID().toString();
-				rFile = new File(dir, fileName + "." + FilenameUtils.getExtension(file.getOriginalFilename()));
-			} while (rFile.exists());
-			FileUtils.copyInputStreamToFile(file.getInputStream(), rFile);
+			return storeFile(file.getInputStream(), file.getOriginalFilename(), group);
+		} catch (IOException e) {
+			logger.warn("failed to upload file", e);
+			throw new SystemException("failed to upload file", e);
+		}
+	}
 
-			// 将文件信息保存到队列中
-			if (DEFAULT_GROUP.equalsIgnoreCase(group)) {
-				putFileToQueue(new TmpFileInfo(fileName, group, System.currentTimeMillis()));
+	/**
+	 * 将输入流的内容直接保存到分组（group）的文件夹中，返回新的文件名；写入失败时删除已写入的部分文件
+	 * 
+	 * @param in
+	 *            文件内容
+	 * @param originalFilename
+	 *            原始文件名，用于获取文件后缀
+	 * @param group
+	 *            文件分组
+	 * @return 当前文件保存在硬盘中的文件名
+	 * @throws SystemException
+	 */
+	public String storeFile(InputStream in, String originalFilename, String group) throws SystemException {
+		File rFile = null;
+		try {
+			// 获取分组的文件夹，并在其中生成新文件
+			long start = System.nanoTime();
+			FileConfigInfo config = getGroupConfig(group);
+			transferMetrics.recordTime(TransferMetrics.UPLOAD_CONFIG, start);
+			rFile = newGroupFile(prepareGroupDir(group, config), config, originalFilename);
+			// 将文件写入本地文件中，去重分组按内容保存；文件已存在时写入失败，不会覆盖
+			start = System.nanoTime();
+			String checksum;
+			try (InputStream input = transferLimiter.throttle(in, group)) {
+				if (isDedup(config)) {
+					checksum = SHA256 + blobStore.store(getRootDir(group), input, rFile);
+				} else {
+					// 写入时顺便计算CRC32，作为元数据中的校验值
+					CheckedInputStream checkedInput = new CheckedInputStream(input, new CRC32());
+					Files.copy(checkedInput, rFile.toPath());
+					checksum = String.format(CRC32_FORMAT, checkedInput.getChecksum().getValue());
+				}
 			}
+			transferMetrics.recordTime(TransferMetrics.UPLOAD_WRITE, start);
+			transferMetrics.addUploadBytes(group, rFile.length());
+			afterFileStored(rFile, group, config, originalFilename, checksum);
 			return rFile.getName();
-		} catch (IOException | InterruptedException e) {
+		} catch (IOException e) {
+			if (rFile != null && rFile.exists()) {
+				rFile.delete();
+			}
 			logger.warn("failed to upload file", e);
 			throw new SystemException("failed to upload file", e);
 		}
 	}
 
 	/**
-	 * 将零时文件的文件信息保存到对应分组的队列中
+	 * 在IO线程池中并发保存多个文件，每个文件单独返回处理结果，部分文件失败不影响其它文件
 	 * 
-	 * @param fileInfo
-	 *            零时文件的文件信息
-	 * @throws InterruptedException
+	 * @param files
+	 *            要保存的文件
+	 * @param group
+	 *            文件分组
+	 * @return 与files顺序一致的处理结果
+	 */
+	public List<FileResult> storeFiles(List<MultipartFile> files, String group) {
+		List<CompletableFuture<FileResult>> futures = files.stream()
+				.map(file -> CompletableFuture.supplyAsync(() -> {
+					FileResult result = new FileResult(group, null,
+							FilenameUtils.getName(file.getOriginalFilename()));
+					try {
+						result.setFileName(storeFile(file, group));
+						result.setSuccess(true);
+					} catch (Exception e) {
+						result.setMsg(e.getMessage());
+					}
+					return result;
+				}, ioExecutor)).collect(Collectors.toList());
+		return futures.stream().map(CompletableFuture::join).collect(Collectors.toList());
+	}
+
+	/**
+	 * 将本地已有的文件（如分片上传合并后的文件）移动到分组（group）的文件夹中，返回新的文件名
+	 * 
+	 * @param source
+	 *            要移动的文件
+	 * @param originalFilename
+	 *            原始文件名，用于获取文件后缀
+	 * @param group
+	 *            文件分组
+	 * @return 当前文件保存在硬盘中的文件名
+	 * @throws SystemException
 	 */
-	private void putFileToQueue(TmpFileInfo fileInfo) throws InterruptedException {
-		// 从map集合中获取文件分组对应的队列
-		BlockingQueue<TmpFileInfo> queue = fileQueueMap.get(fileInfo.getGroup());
-		// 当没有该分组时，锁定当前类，向集合中添加键值对，key为队列标识（fileInfo.getGroup()），value为新的空队列
-		if (queue == null) {
-			synchronized (this) {
-				queue = fileQueueMap.get(fileInfo.getGroup());
-				if (queue == null) {
-					queue = new LinkedBlockingQueue<>();
-					fileQueueMap.put(fileInfo.getGroup(), queue);
+	public String storeFile(File source, String originalFilename, String group) throws SystemException {
+		try {
+			FileConfigInfo config = getGroupConfig(group);
+			File rFile = newGroupFile(prepareGroupDir(group, config), config, originalFilename);
+			String checksum = null;
+			if (isDedup(config)) {
+				try (InputStream in = new FileInputStream(source)) {
+					checksum = SHA256 + blobStore.store(getRootDir(group), in, rFile);
 				}
+				FileUtils.deleteQuietly(source);
+			} else {
+				FileUtils.moveFile(source, rFile);
 			}
+			afterFileStored(rFile, group, config, originalFilename, checksum);
+			return rFile.getName();
+		} catch (IOException e) {
+			logger.warn("failed to store file:{}", source, e);
+			throw new SystemException("failed to store file", e);
 		}
-		// 向队列中存入信息
-		queue.put(fileInfo);
 	}
 
-	public File getFile(String fileName, String group) throws Exception {
+	/**
+	 * 秒传：分组开启了按内容去重且相同内容已存在时，直接生成新文件，不需要上传文件内容
+	 * 
+	 * @param sha256
+	 *            文件内容的SHA-256（小写十六进制）
+	 * @param originalFilename
+	 *            原始文件名，用于获取文件后缀
+	 * @param group
+	 *            文件分组
+	 * @return 当前文件保存在硬盘中的文件名，内容不存在或分组未开启去重时返回null
+	 * @throws SystemException
+	 */
+	public String storeFileByHash(String sha256, String originalFilename, String group) throws SystemException {
+		FileConfigInfo config = getGroupConfig(group);
+		if (!isDedup(config) || !blobStore.isValidHash(sha256)) {
+			return null;
+		}
+		long size = blobStore.getSize(getRootDir(group), sha256);
+		if (size < 0) {
+			return null;
+		}
+		checkQuota(group, config, size);
+		try {
+			File rFile = newGroupFile(prepareGroupDir(group, config), config, originalFilename);
+			if (!blobStore.link(getRootDir(group), sha256, rFile)) {
+				return null;
+			}
+			afterFileStored(rFile, group, config, originalFilename, SHA256 + sha256);
+			return rFile.getName();
+		} catch (IOException e) {
+			logger.warn("failed to store file by hash:{}", sha256, e);
+			throw new SystemException("failed to store file", e);
+		}
+	}
+
+	/**
+	 * 检查分组再保存一个指定大小的文件后是否仍在配额之内，超过配额时抛出异常
+	 *
+	 * @param group
+	 *            文件分组
+	 * @param config
+	 *            分组的默认配置
+	 * @param bytes
+	 *            要保存的字节数
+	 * @throws SystemException
+	 */
+	public void checkQuota(String group, FileConfigInfo config, long bytes) throws SystemException {
+		if (!storageQuota.allows(group, config, bytes)) {
+			logger.warn("upload exceed quota of appId:{}, usage:{}", group,
+					Arrays.toString(storageQuota.getUsage(group)));
+			throw new SystemException("upload exceed quota of group:" + group);
+		}
+	}
+
+	private boolean isDedup(FileConfigInfo config) {
+		return Boolean.TRUE.equals(config.getDedup());
+	}
+
+	/**
+	 * 获取分组的配置信息，分组无效时抛出异常
+	 */
+	private FileConfigInfo getGroupConfig(String group) throws SystemException {
 		FileConfigInfo config = getFileConfig(group);
 		if (config == null) {
 			throw new SystemException("invalid group:" + group);
 		}
+		return config;
+	}
+
+	/**
+	 * 获取分组的文件夹，不存在时创建
+	 */
+	private File prepareGroupDir(String group, FileConfigInfo config) throws SystemException {
+		// 获取零时文件夹中该分组的文件夹
 		File dir = getGroupDir(group, config);
-		if (dir.exists()) {
-			File rFile = new File(dir, fileName);
+		if (dir.exists() == false) {
+			if (dir.mkdirs() == false) {
+				throw new SystemException("failed to create folder:" + dir.getAbsolutePath());
+			}
+		}
+		return dir;
+	}
+
+	/**
+	 * 在分组文件夹（或其分桶文件夹）中生成新文件名，后缀与原始文件相同。
+	 * 随机UUID不会重复，不再逐个检查文件是否存在，写入时若文件已存在会失败而不会覆盖
+	 */
+	private File newGroupFile(File dir, FileConfigInfo config, String originalFilename) throws SystemException {
+		String fileName = UUID.randomUUID().toString() + "." + FilenameUtils.getExtension(originalFilename);
+		File rFile = ShardLayout.locate(dir, getShardLevels(config), fileName);
+		File parent = rFile.getParentFile();
+		if (!parent.equals(dir) && !parent.isDirectory() && !parent.mkdirs() && !parent.isDirectory()) {
+			throw new SystemException("failed to create folder:" + parent.getAbsolutePath());
+		}
+		return rFile;
+	}
+
+	/**
+	 * 在分组文件夹中查找文件：文件在元数据索引中时直接按索引中的路径返回，不访问文件系统；
+	 * 否则先按分桶布局查找，再兼容查找分桶之前直接保存在分组文件夹中的文件
+	 * 
+	 * @return 文件不存在时返回null
+	 */
+	private File findFile(String group, File dir, FileConfigInfo config, String fileName) {
+		FileMetadata metadata = metadataIndex.get(group, fileName);
+		if (metadata != null) {
+			return new File(dir, metadata.getPath());
+		}
+		int levels = getShardLevels(config);
+		File rFile = ShardLayout.locate(dir, levels, fileName);
+		if (rFile.exists()) {
+			return rFile;
+		}
+		if (levels > 0) {
+			File flatFile = new File(dir, fileName);
+			if (flatFile.exists()) {
+				return flatFile;
+			}
+			// 迁移任务可能刚把文件移动到分桶中
 			if (rFile.exists()) {
 				return rFile;
 			}
@@ -133,128 +383,474 @@ public class FileService extends AbstractFileService {
 		return null;
 	}
 
-	@Scheduled(cron = "0 0/30 * * * ?")
-	public void clearTimeoutFile() {
-		logger.info("start the clear timeout file job");
-		try {
-			if (fileQueueMap != null) {
-				for (String group : fileQueueMap.keySet()) {
-					BlockingQueue<TmpFileInfo> fileQueue = fileQueueMap.get(group);
-					FileConfigInfo config = getFileConfig(group);
-					if (config == null) {
-						logger.warn("found invalid group:{}, skip ", group);
+	private int getShardLevels(FileConfigInfo config) {
+		return config.getShardLevels() == null ? 0 : Math.min(config.getShardLevels(), ShardLayout.MAX_LEVELS);
+	}
+
+	/**
+	 * 在线迁移：将开启分桶的分组中直接保存在分组文件夹的文件移动到分桶文件夹中，每次最多迁移shardMigrateBatch个文件
+	 */
+	@Scheduled(fixedDelayString = "${fs.shard.migrate-interval:600000}")
+	public void migrateToShards() {
+		List<String> appIds = getAppIds();
+		int remaining = shardMigrateBatch;
+		for (String group : appIds) {
+			FileConfigInfo config = getFileConfig(group);
+			if (remaining <= 0 || config == null || getShardLevels(config) <= 0) {
+				continue;
+			}
+			File dir = getGroupDir(group, config);
+			if (!dir.isDirectory()) {
+				continue;
+			}
+			int migrated = 0;
+			try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir.toPath())) {
+				for (Path path : stream) {
+					if (remaining <= 0) {
+						break;
+					}
+					String fileName = path.getFileName().toString();
+					if (fileName.startsWith(".") || !Files.isRegularFile(path)) {
 						continue;
 					}
-					do {
-						TmpFileInfo file = fileQueue.poll();
-						if (file == null) {
-							logger.info("no file in queue, break job");
-							break;
-						}
-						if (file.getTimeStamp() + config.getTimeout() * 60 * 1000 > System.currentTimeMillis()) {
-							logger.info("file not old enough, break job");
-							break;
-						}
-						removeTmpFile(file);
-					} while (true);
+					File target = ShardLayout.locate(dir, getShardLevels(config), fileName);
+					FileUtils.forceMkdir(target.getParentFile());
+					Files.move(path, target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+					FileMetadata metadata = metadataIndex.get(group, fileName);
+					if (metadata != null) {
+						metadata.setPath(metadataIndex.getPath(dir, target));
+						metadataIndex.put(metadata);
+					}
+					hotFileCache.invalidate(path.toFile());
+					compressedVariants.move(path.toFile(), target, config);
+					migrated++;
+					remaining--;
 				}
+			} catch (IOException e) {
+				logger.warn("failed to migrate files of group:{} to shards", group, e);
+			}
+			if (migrated > 0) {
+				logger.info("migrated {} files of group:{} to shards", migrated, group);
 			}
-		} catch (Exception e) {
-			logger.warn("failed to loop timeout file queue", e);
 		}
-		logger.info("finished the clear timeout file job");
+	}
+
+	/**
+	 * 文件写入分组文件夹后的处理：记录元数据；零时文件加入过期调度，并记录到过期索引日志中；需要压缩的文件加入后台压缩队列
+	 */
+	private void afterFileStored(File rFile, String group, FileConfigInfo config, String originalFilename,
+			String checksum) {
+		FileMetadata metadata = metadataIndex.newMetadata(group, getGroupDir(group, config), rFile,
+				FilenameUtils.getName(originalFilename), checksum);
+		metadataIndex.put(metadata);
+		storageQuota.add(group, metadata.getSize(), 1);
+		compressedVariants.afterStored(rFile, config);
+		if (DEFAULT_GROUP.equalsIgnoreCase(group)) {
+			TmpFileInfo fileInfo = new TmpFileInfo(rFile.getName(), group, System.currentTimeMillis());
+			scheduleExpiry(fileInfo);
+			journal.append(fileInfo);
+		}
+	}
+
+	/**
+	 * 按分组配置的超时时间，将零时文件加入过期调度
+	 * 
+	 * @param fileInfo
+	 *            零时文件的文件信息
+	 */
+	private void scheduleExpiry(TmpFileInfo fileInfo) {
+		FileConfigInfo config = getFileConfig(fileInfo.getGroup());
+		if (config == null || config.getTimeout() == null) {
+			logger.warn("found invalid group:{}, skip tmp file:{}", fileInfo.getGroup(), fileInfo.getFileName());
+			return;
+		}
+		expirer.schedule(fileInfo, fileInfo.getTimeStamp() + config.getTimeout() * 60L * 1000);
+	}
+
+	/**
+	 * 零时文件已被移动或删除，取消过期调度
+	 */
+	private void retireTmpFile(String group, String fileName) {
+		expirer.cancel(group, fileName);
+		journal.retire(group, fileName);
+	}
+
+	public File getFile(String fileName, String group) throws Exception {
+		FileConfigInfo config = getFileConfig(group);
+		if (config == null) {
+			throw new SystemException("invalid group:" + group);
+		}
+		return findFile(group, getGroupDir(group, config), config, fileName);
+	}
+
+	/**
+	 * 获取元数据索引中的文件，不访问文件系统
+	 *
+	 * @param metadata
+	 *            文件的元数据
+	 * @return 文件，分组无效时返回null
+	 */
+	public File getFile(FileMetadata metadata) {
+		FileConfigInfo config = getFileConfig(metadata.getGroup());
+		return config == null ? null : new File(getGroupDir(metadata.getGroup(), config), metadata.getPath());
+	}
+
+	/**
+	 * 获取文件的元数据，不访问文件本身
+	 *
+	 * @param fileName
+	 *            文件名
+	 * @param group
+	 *            文件分组
+	 * @return 文件不在元数据索引中（如索引建立之前保存的文件）时返回null
+	 */
+	public FileMetadata getMetadata(String fileName, String group) {
+		return metadataIndex.get(group, fileName);
+	}
+
+	/**
+	 * 从元数据索引中删除文件的记录，用于清理文件已不存在的过期记录
+	 *
+	 * @param fileName
+	 *            文件名
+	 * @param group
+	 *            文件分组
+	 */
+	public void removeMetadata(String fileName, String group) {
+		metadataIndex.remove(group, fileName);
+	}
+
+	/**
+	 * 获取图片文件的缩略图，不存在时生成
+	 *
+	 * @param fileName
+	 *            原图的文件名
+	 * @param group
+	 *            文件分组
+	 * @param width
+	 *            最大宽度，为空时按高度等比缩放
+	 * @param height
+	 *            最大高度，为空时按宽度等比缩放
+	 * @param quality
+	 *            JPEG质量（1~100）
+	 * @return 缩略图文件，原图不存在时返回null
+	 * @throws BusinessException
+	 *             参数无效或原文件不是支持的图片
+	 * @throws SystemException
+	 */
+	public File getThumbnail(String fileName, String group, Integer width, Integer height, int quality)
+			throws BusinessException, SystemException {
+		FileConfigInfo config = getGroupConfig(group);
+		File dir = getGroupDir(group, config);
+		File source = findFile(group, dir, config, fileName);
+		return source == null ? null : thumbnailService.getThumbnail(source, dir, width, height, quality);
+	}
+
+	/**
+	 * 获取缩略图的MIME类型
+	 *
+	 * @param thumbnail
+	 *            getThumbnail返回的缩略图文件
+	 */
+	public String getThumbnailContentType(File thumbnail) {
+		return thumbnailService.getContentType(thumbnail);
+	}
+
+	/**
+	 * 分页列出分组中的文件，按路径排序；零时分组和正式分组都可以列出
+	 *
+	 * @param group
+	 *            文件分组
+	 * @param cursor
+	 *            上一页返回的游标，为空时从头开始
+	 * @param limit
+	 *            每页最多返回的文件数
+	 * @param prefix
+	 *            文件名前缀，为空时不限制
+	 * @param extensions
+	 *            文件后缀，多个用逗号分隔，为空时不限制
+	 * @param modifiedAfter
+	 *            只列出在该时间（毫秒）之后修改的文件，为空时不限制
+	 * @param modifiedBefore
+	 *            只列出在该时间（毫秒）之前修改的文件，为空时不限制
+	 * @throws BusinessException
+	 *             游标无效
+	 * @throws SystemException
+	 */
+	public FileListPage listFiles(String group, String cursor, int limit, String prefix, String extensions,
+			Long modifiedAfter, Long modifiedBefore) throws BusinessException, SystemException {
+		FileConfigInfo config = getGroupConfig(group);
+		Predicate<FileStat> filter = stat -> true;
+		if (StringUtils.hasText(prefix)) {
+			filter = filter.and(stat -> stat.getFileName().startsWith(prefix));
+		}
+		if (StringUtils.hasText(extensions)) {
+			List<String> extensionList = new ArrayList<>();
+			for (String extension : StringUtils.commaDelimitedListToStringArray(extensions.toLowerCase())) {
+				extension = extension.trim();
+				extensionList.add(extension.startsWith(".") ? extension.substring(1) : extension);
+			}
+			filter = filter.and(
+					stat -> extensionList.contains(FilenameUtils.getExtension(stat.getFileName()).toLowerCase()));
+		}
+		if (modifiedAfter != null) {
+			filter = filter.and(stat -> stat.getLastModified() > modifiedAfter);
+		}
+		if (modifiedBefore != null) {
+			filter = filter.and(stat -> stat.getLastModified() < modifiedBefore);
+		}
+		try {
+			return directoryLister.list(getGroupDir(group, config), cursor, limit, filter);
+		} catch (IllegalArgumentException e) {
+			throw new BusinessException(e.getMessage());
+		} catch (IOException e) {
+			logger.warn("failed to list files of group:{}", group, e);
+			throw new SystemException("failed to list files", e);
+		}
+	}
+
+	/**
+	 * 立即清理所有已到期的零时文件，不受删除速率限制；正常情况下零时文件由过期线程在到期后逐个删除
+	 */
+	public void clearTimeoutFile() {
+		logger.info("start the clear timeout file job");
+		List<TmpFileInfo> files = expirer.drainExpired();
+		for (TmpFileInfo file : files) {
+			removeTmpFile(file);
+		}
+		logger.info("finished the clear timeout file job, {} files removed", files.size());
 	}
 
 	private void removeTmpFile(TmpFileInfo fileInfo) {
+		long start = System.nanoTime();
 		try {
 			FileConfigInfo config = getFileConfig(fileInfo.getGroup());
-			File dir = new File(fileTmpDir, config.getPath());
-			if (dir.exists()) {
-				File rFile = new File(dir, fileInfo.getFileName());
-				if (rFile.exists()) {
-					rFile.delete();
-				} else {
-					logger.info("tmp file:{} not exist", fileInfo.getFileName());
-				}
+			File rFile = findFile(fileInfo.getGroup(), getGroupDir(fileInfo.getGroup(), config), config,
+					fileInfo.getFileName());
+			if (rFile != null) {
+				deleteGroupFile(fileInfo.getGroup(), rFile);
 			} else {
-				logger.info("tmp dir not exist");
+				logger.info("tmp file:{} not exist", fileInfo.getFileName());
 			}
+			metadataIndex.remove(fileInfo.getGroup(), fileInfo.getFileName());
+			thumbnailService.delete(getGroupDir(fileInfo.getGroup(), config), fileInfo.getFileName());
+			journal.retire(fileInfo.getGroup(), fileInfo.getFileName());
 		} catch (Exception e) {
 			logger.warn("failed to remove tmp file:{}", fileInfo.getFileName(), e);
 		}
+		transferMetrics.recordTime(TransferMetrics.FILE_EXPIRE, start);
 	}
 
 	public void deleteFile(FileInfo fileInfo) throws SystemException {
+		deleteFile(fileInfo, this::getFileConfig);
+	}
+
+	/**
+	 * 批量删除文件，每个分组的配置只查询一次，文件在IO线程池中并发删除
+	 * 
+	 * @param fileInfos
+	 *            要删除的文件
+	 * @return 与fileInfos顺序一致的处理结果
+	 */
+	public List<FileResult> deleteFiles(List<FileInfo> fileInfos) {
+		Map<String, FileConfigInfo> configs = resolveConfigs(fileInfos, null);
+		return runBatch(fileInfos, fileInfo -> deleteFile(fileInfo, configs::get));
+	}
+
+	private void deleteFile(FileInfo fileInfo, Function<String, FileConfigInfo> configs) throws SystemException {
 		if (fileInfo == null || StringUtils.isEmpty(fileInfo.getFileName())) {
 			logger.warn("empty fileInfo:{},return", fileInfo);
 			return;
 		}
+		long start = System.nanoTime();
 		try {
 			// 获取分组文件夹
 			String group = (StringUtils.isEmpty(fileInfo.getGroup()) ? DEFAULT_GROUP : fileInfo.getGroup());
-			FileConfigInfo config = getFileConfig(group);
+			FileConfigInfo config = configs.apply(group);
 			if (config == null) {
 				throw new SystemException("invalid group:" + group);
 			}
+			// 获取目标文件对象，当目标文件存在时，删除文件
 			File dir = getGroupDir(group, config);
-			if (dir.exists()) {
-				// 当分组文件夹存在时，获取目标文件对象
-				File rFile = new File(dir, fileInfo.getFileName());
-				if (rFile.exists()) {
-					// 当目标文件存在时，删除文件
-					rFile.delete();
-				}
+			File rFile = findFile(group, dir, config, fileInfo.getFileName());
+			if (rFile != null) {
+				deleteGroupFile(group, rFile);
+			}
+			metadataIndex.remove(group, fileInfo.getFileName());
+			thumbnailService.delete(dir, fileInfo.getFileName());
+			if (DEFAULT_GROUP.equalsIgnoreCase(group)) {
+				retireTmpFile(group, fileInfo.getFileName());
 			}
 		} catch (Exception e) {
 			logger.warn("failed to delete file:{}", fileInfo, e);
 			throw new SystemException("file delete failed", e);
+		} finally {
+			transferMetrics.recordTime(TransferMetrics.FILE_DELETE, start);
 		}
 	}
 
+	/**
+	 * 删除分组中的文件及其压缩文件，删除成功时减少分组用量
+	 */
+	private void deleteGroupFile(String group, File rFile) {
+		long length = rFile.length();
+		if (rFile.delete()) {
+			storageQuota.add(group, -length, -1);
+		}
+		hotFileCache.invalidate(rFile);
+		compressedVariants.delete(rFile);
+	}
+
 	public void switchFileGroup(FileInfo tmpFileInfo, String targetGroup) throws SystemException {
+		switchFileGroup(tmpFileInfo, targetGroup, this::getFileConfig);
+	}
+
+	/**
+	 * 批量移动文件到目标分组，每个分组的配置只查询一次，文件在IO线程池中并发移动
+	 * 
+	 * @param fileInfos
+	 *            要移动的文件
+	 * @param targetGroup
+	 *            目标分组
+	 * @return 与fileInfos顺序一致的处理结果
+	 */
+	public List<FileResult> switchFileGroups(List<FileInfo> fileInfos, String targetGroup) {
+		Map<String, FileConfigInfo> configs = resolveConfigs(fileInfos, targetGroup);
+		return runBatch(fileInfos, fileInfo -> switchFileGroup(fileInfo, targetGroup, configs::get));
+	}
+
+	private void switchFileGroup(FileInfo tmpFileInfo, String targetGroup, Function<String, FileConfigInfo> configs)
+			throws SystemException {
 		if (tmpFileInfo == null || StringUtils.isEmpty(tmpFileInfo.getFileName()) || StringUtils.isEmpty(targetGroup)) {
 			logger.warn("empty fileInfo:{} or targetGroup:{},return", tmpFileInfo, targetGroup);
 			return;
 		}
+		long start = System.nanoTime();
 		try {
 			// 获取分组文件夹
 			String group = (StringUtils.isEmpty(tmpFileInfo.getGroup()) ? DEFAULT_GROUP : tmpFileInfo.getGroup());
 			if (!targetGroup.equalsIgnoreCase(group)) {
-				FileConfigInfo config = getFileConfig(group);
+				FileConfigInfo config = configs.apply(group);
 				if (config == null) {
 					throw new SystemException("invalid group:" + group);
 				}
-				FileConfigInfo targetConfig = getFileConfig(targetGroup);
+				FileConfigInfo targetConfig = configs.apply(targetGroup);
 				if (targetConfig == null) {
 					throw new SystemException("invalid group:" + targetGroup);
 				}
-				File srcDir = getGroupDir(group, config);
-				if (srcDir.exists()) {
-					File srcFile = new File(srcDir, tmpFileInfo.getFileName());
-					if (srcFile.exists()) {
-						File targetDir = getGroupDir(targetGroup, targetConfig);
-						FileUtils.moveFileToDirectory(srcFile, targetDir, true);
+				File srcFile = findFile(group, getGroupDir(group, config), config, tmpFileInfo.getFileName());
+				if (srcFile != null) {
+					// 按目标分组的分桶布局保存
+					File targetDir = getGroupDir(targetGroup, targetConfig);
+					File targetFile = ShardLayout.locate(targetDir, getShardLevels(targetConfig),
+							tmpFileInfo.getFileName());
+					FileUtils.forceMkdir(targetFile.getParentFile());
+					FileMetadata metadata = metadataIndex.get(group, tmpFileInfo.getFileName());
+					String checksum = metadata == null ? null : metadata.getChecksum();
+					if (isDedup(targetConfig) && (!isDedup(config)
+							|| !getRootDir(group).equals(getRootDir(targetGroup)))) {
+						checksum = relinkFile(srcFile, checksum, targetGroup, targetFile);
 					} else {
-						logger.warn("source file:{} not exist", tmpFileInfo);
+						FileUtils.moveFile(srcFile, targetFile);
+					}
+					long length = targetFile.length();
+					storageQuota.add(group, -length, -1);
+					storageQuota.add(targetGroup, length, 1);
+					moveMetadata(tmpFileInfo, metadata, checksum, group, targetGroup, targetDir, targetFile);
+					hotFileCache.invalidate(srcFile);
+					compressedVariants.move(srcFile, targetFile, targetConfig);
+					// 缩略图不随文件移动，在目标分组中重新生成
+					thumbnailService.delete(getGroupDir(group, config), tmpFileInfo.getFileName());
+					if (DEFAULT_GROUP.equalsIgnoreCase(group)) {
+						retireTmpFile(group, tmpFileInfo.getFileName());
 					}
+				} else {
+					logger.warn("source file:{} not exist", tmpFileInfo);
 				}
 			}
 		} catch (Exception e) {
 			logger.warn("failed to move file", e);
 			throw new SystemException("file move failed", e);
+		} finally {
+			transferMetrics.recordTime(TransferMetrics.FILE_SWITCH, start);
 		}
 	}
 
-	@Data
-	private static class TmpFileInfo {
-		private String fileName;
-		private String group;
-		private long timeStamp;
+	/**
+	 * 将文件移动到开启了去重的目标分组：在目标分组根目录的blob上创建链接后删除源文件。
+	 * 直接移动时链接仍指向源根目录（如零时文件夹）中的blob，目标分组无法秒传该内容，跨文件系统时还会变成普通文件
+	 *
+	 * @param checksum
+	 *            源文件元数据中的校验值，不是SHA-256时重新计算
+	 * @return 目标文件的校验值
+	 */
+	private String relinkFile(File srcFile, String checksum, String targetGroup, File targetFile) throws IOException {
+		File root = getRootDir(targetGroup);
+		String hash = checksum != null && checksum.startsWith(SHA256) ? checksum.substring(SHA256.length()) : null;
+		if (hash == null || !blobStore.link(root, hash, targetFile)) {
+			// 目标根目录中还没有该内容
+			try (InputStream in = new FileInputStream(srcFile)) {
+				hash = blobStore.store(root, in, targetFile);
+			}
+		}
+		FileUtils.forceDelete(srcFile);
+		return SHA256 + hash;
+	}
 
-		public TmpFileInfo(String fileName, String group, long timeStamp) {
-			this.fileName = fileName;
-			this.group = group;
-			this.timeStamp = timeStamp;
+	/**
+	 * 文件移动到目标分组后更新元数据，保留原始文件名和保存时间；文件不在索引中时按文件信息新建
+	 */
+	private void moveMetadata(FileInfo fileInfo, FileMetadata metadata, String checksum, String group,
+			String targetGroup, File targetDir, File targetFile) {
+		FileMetadata targetMetadata = metadataIndex.newMetadata(targetGroup, targetDir, targetFile,
+				metadata == null ? fileInfo.getOrgFileName() : metadata.getOrgFileName(), checksum);
+		if (metadata != null) {
+			targetMetadata.setCreateTime(metadata.getCreateTime());
+			metadataIndex.remove(group, fileInfo.getFileName());
 		}
+		metadataIndex.put(targetMetadata);
+	}
+
+	/**
+	 * 查询批量操作涉及的所有分组的配置，无效分组的值为null
+	 */
+	private Map<String, FileConfigInfo> resolveConfigs(List<FileInfo> fileInfos, String targetGroup) {
+		Map<String, FileConfigInfo> configs = new HashMap<>();
+		if (StringUtils.hasText(targetGroup)) {
+			configs.put(targetGroup, getFileConfig(targetGroup));
+		}
+		for (FileInfo fileInfo : fileInfos) {
+			if (fileInfo != null) {
+				String group = (StringUtils.isEmpty(fileInfo.getGroup()) ? DEFAULT_GROUP : fileInfo.getGroup());
+				if (!configs.containsKey(group)) {
+					configs.put(group, getFileConfig(group));
+				}
+			}
+		}
+		return configs;
+	}
+
+	/**
+	 * 在IO线程池中并发执行批量文件操作，每个文件单独返回处理结果
+	 */
+	private List<FileResult> runBatch(List<FileInfo> fileInfos, FileOperation operation) {
+		List<CompletableFuture<FileResult>> futures = fileInfos.stream()
+				.map(fileInfo -> CompletableFuture.supplyAsync(() -> {
+					FileResult result = fileInfo == null ? new FileResult()
+							: new FileResult(fileInfo.getGroup(), fileInfo.getFileName(), fileInfo.getOrgFileName());
+					try {
+						operation.apply(fileInfo);
+						result.setSuccess(true);
+					} catch (Exception e) {
+						result.setMsg(e.getMessage());
+					}
+					return result;
+				}, ioExecutor)).collect(Collectors.toList());
+		return futures.stream().map(CompletableFuture::join).collect(Collectors.toList());
+	}
+
+	@FunctionalInterface
+	private interface FileOperation {
+		void apply(FileInfo fileInfo) throws SystemException;
 	}
 }
@@ -0,0 +1,72 @@
+package com.akcome.file.srv;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.commons.io.FilenameUtils;
+import org.springframework.util.MimeType;
+import org.springframework.util.StringUtils;
+
+/**
+ * 文件类型列表（如分组配置的compressTypes）：包含/的按MIME类型匹配（支持text/*），其它按文件后缀匹配，创建后不再修改
+ */
+public final class FileTypeMatcher {
+	private final List<MimeType> mimeTypes;
+	private final Set<String> extensions;
+
+	/**
+	 * @param types
+	 *            逗号分隔的MIME类型或文件后缀，如text/*,application/json,.csv
+	 */
+	public FileTypeMatcher(String types) {
+		List<MimeType> mimeTypes = new ArrayList<>();
+		Set<String> extensions = new HashSet<>();
+		for (String type : StringUtils.commaDelimitedListToStringArray(types)) {
+			type = type.trim().toLowerCase();
+			if (type.contains("/")) {
+				MimeType mimeType = parseMimeType(type);
+				if (mimeType != null) {
+					mimeTypes.add(mimeType);
+				}
+			} else if (!type.isEmpty()) {
+				extensions.add(type.startsWith(".") ? type.substring(1) : type);
+			}
+		}
+		this.mimeTypes = Collections.unmodifiableList(mimeTypes);
+		this.extensions = Collections.unmodifiableSet(extensions);
+	}
+
+	/**
+	 * 判断文件是否属于其中的类型之一
+	 *
+	 * @param fileName
+	 *            文件名，用于按后缀匹配
+	 * @param contentType
+	 *            文件的MIME类型，未知时为null
+	 */
+	public boolean matches(String fileName, String contentType) {
+		if (extensions.contains(FilenameUtils.getExtension(fileName).toLowerCase())) {
+			return true;
+		}
+		MimeType mimeType = parseMimeType(contentType);
+		if (mimeType != null) {
+			for (MimeType type : mimeTypes) {
+				if (type.includes(mimeType)) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	private static MimeType parseMimeType(String contentType) {
+		try {
+			return StringUtils.isEmpty(contentType) ? null : MimeType.valueOf(contentType);
+		} catch (IllegalArgumentException e) {
+			return null;
+		}
+	}
+}
@@ -0,0 +1,183 @@
+package com.akcome.file.srv;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.stereotype.Component;
+
+/**
+ * 小文件的内存缓存：文件内容保存在堆外的直接内存中，按总字节数限制容量，超出时淘汰最久未访问的文件（LRU）。
+ * 同一文件并发未命中时只读取一次硬盘；文件大小或修改时间变化时视为未命中
+ */
+@Component
+public class HotFileCache implements PublicMetrics {
+	private final Logger logger = LoggerFactory.getLogger(getClass());
+	@Value("${fs.cache.enabled:false}")
+	private boolean enabled;
+	@Value("${fs.cache.max-bytes:67108864}")
+	private long maxBytes;
+	@Value("${fs.cache.max-file-size:262144}")
+	private long maxFileSize;
+	/** 按访问顺序排列的缓存项，访问和修改时锁定当前对象 */
+	private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(256, 0.75f, true);
+	private long bytes;
+	private final Map<String, CompletableFuture<Entry>> loadingMap = new ConcurrentHashMap<>();
+	/** 每次失效时加一，读取期间有失效发生时不放入缓存 */
+	private final AtomicLong invalidations = new AtomicLong();
+	private final AtomicLong hitCount = new AtomicLong();
+	private final AtomicLong missCount = new AtomicLong();
+	private final AtomicLong evictionCount = new AtomicLong();
+
+	/**
+	 * 获取文件内容，未命中时读取文件并放入缓存
+	 *
+	 * @param file
+	 *            文件
+	 * @param length
+	 *            文件大小
+	 * @param lastModified
+	 *            文件修改时间
+	 * @return 只读的文件内容，未开启缓存、文件过大或读取失败时返回null，由调用者直接读取文件
+	 */
+	public ByteBuffer get(File file, long length, long lastModified) {
+		if (!enabled || length <= 0 || length > maxFileSize) {
+			return null;
+		}
+		String key = file.getPath();
+		Entry entry;
+		synchronized (this) {
+			entry = entries.get(key);
+		}
+		if (entry != null && entry.matches(length, lastModified)) {
+			hitCount.incrementAndGet();
+			return entry.content.duplicate();
+		}
+		missCount.incrementAndGet();
+		CompletableFuture<Entry> future = new CompletableFuture<>();
+		CompletableFuture<Entry> loading = loadingMap.putIfAbsent(key, future);
+		if (loading == null) {
+			try {
+				long invalidation = invalidations.get();
+				entry = load(file, length, lastModified);
+				if (entry != null && invalidation == invalidations.get()) {
+					put(key, entry);
+				}
+				future.complete(entry);
+			} catch (IOException e) {
+				logger.warn("failed to cache file:{}", file.getName(), e);
+				future.complete(null);
+			} finally {
+				loadingMap.remove(key, future);
+			}
+		} else {
+			try {
+				entry = loading.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return null;
+			} catch (ExecutionException e) {
+				return null;
+			}
+		}
+		return entry != null && entry.matches(length, lastModified) ? entry.content.duplicate() : null;
+	}
+
+	/**
+	 * 文件被删除或移动后清除缓存
+	 *
+	 * @param file
+	 *            文件
+	 */
+	public void invalidate(File file) {
+		if (!enabled || file == null) {
+			return;
+		}
+		invalidations.incrementAndGet();
+		synchronized (this) {
+			Entry entry = entries.remove(file.getPath());
+			if (entry != null) {
+				bytes -= entry.length;
+			}
+		}
+	}
+
+	@Override
+	public Collection<Metric<?>> metrics() {
+		List<Metric<?>> metrics = new ArrayList<>();
+		long hits = hitCount.get();
+		long misses = missCount.get();
+		metrics.add(new Metric<Long>("fs.cache.hits", hits));
+		metrics.add(new Metric<Long>("fs.cache.misses", misses));
+		metrics.add(new Metric<Double>("fs.cache.hit-ratio", hits + misses == 0 ? 0 : (double) hits / (hits + misses)));
+		metrics.add(new Metric<Long>("fs.cache.evictions", evictionCount.get()));
+		synchronized (this) {
+			metrics.add(new Metric<Long>("fs.cache.bytes", bytes));
+			metrics.add(new Metric<Integer>("fs.cache.entries", entries.size()));
+		}
+		return metrics;
+	}
+
+	private synchronized void put(String key, Entry entry) {
+		Entry old = entries.put(key, entry);
+		if (old != null) {
+			bytes -= old.length;
+		}
+		bytes += entry.length;
+		// 超出容量时淘汰最久未访问的文件，被淘汰的直接内存在缓冲区不再被引用后由GC释放
+		Iterator<Entry> it = entries.values().iterator();
+		while (bytes > maxBytes && it.hasNext()) {
+			Entry eldest = it.next();
+			it.remove();
+			bytes -= eldest.length;
+			evictionCount.incrementAndGet();
+		}
+	}
+
+	private Entry load(File file, long length, long lastModified) throws IOException {
+		ByteBuffer content = ByteBuffer.allocateDirect((int) length);
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			while (content.hasRemaining()) {
+				if (channel.read(content) < 0) {
+					// 读取期间文件被修改
+					return null;
+				}
+			}
+		}
+		content.flip();
+		return new Entry(content.asReadOnlyBuffer(), length, lastModified);
+	}
+
+	private static class Entry {
+		private final ByteBuffer content;
+		private final long length;
+		private final long lastModified;
+
+		Entry(ByteBuffer content, long length, long lastModified) {
+			this.content = content;
+			this.length = length;
+			this.lastModified = lastModified;
+		}
+
+		boolean matches(long length, long lastModified) {
+			return this.length == length && this.lastModified == lastModified;
+		}
+	}
+}
@@ -0,0 +1,60 @@
+package com.akcome.file.srv;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.CRC32;
+
+/**
+ * 分组文件夹的分桶布局：按文件名的CRC32逐级取8位，每级256个子文件夹（00~ff），避免单个文件夹中文件过多。
+ * 分桶级数为0时文件直接保存在分组文件夹中
+ */
+public final class ShardLayout {
+	public static final int MAX_LEVELS = 4;
+
+	private ShardLayout() {
+	}
+
+	/**
+	 * 获取文件按分桶布局应在的位置
+	 *
+	 * @param groupDir
+	 *            分组文件夹
+	 * @param levels
+	 *            分桶级数
+	 * @param fileName
+	 *            文件名
+	 * @return 文件对象
+	 */
+	public static File locate(File groupDir, int levels, String fileName) {
+		return new File(getShardDir(groupDir, levels, fileName), fileName);
+	}
+
+	/**
+	 * 获取文件名所在的分桶文件夹
+	 */
+	public static File getShardDir(File groupDir, int levels, String fileName) {
+		if (levels <= 0) {
+			return groupDir;
+		}
+		CRC32 crc = new CRC32();
+		crc.update(fileName.getBytes(StandardCharsets.UTF_8));
+		long hash = crc.getValue();
+		StringBuilder path = new StringBuilder();
+		for (int i = 0; i < Math.min(levels, MAX_LEVELS); i++) {
+			int bucket = (int) ((hash >>> (24 - i * 8)) & 0xff);
+			if (i > 0) {
+				path.append(File.separatorChar);
+			}
+			path.append(Character.forDigit(bucket >> 4, 16)).append(Character.forDigit(bucket & 0xf, 16));
+		}
+		return new File(groupDir, path.toString());
+	}
+
+	/**
+	 * 判断文件夹名是否为分桶文件夹
+	 */
+	public static boolean isShardDirName(String name) {
+		return name.length() == 2 && Character.digit(name.charAt(0), 16) >= 0
+				&& Character.digit(name.charAt(1), 16) >= 0 && name.equals(name.toLowerCase());
+	}
+}
@@ -0,0 +1,350 @@
+package com.akcome.file.srv;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.apache.commons.io.FileUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Component;
+
+import com.akcome.file.config.FileConfigInfo;
+
+/**
+ * 分组的存储用量（字节数和文件数）：保存、删除、移动和过期清理文件时增量更新，定期保存到数据根目录下的.meta/usage.properties，
+ * 并由低优先级的后台线程定期扫描分组文件夹校正（扫描期间的增量在扫描结束后补上）。
+ * 上传前按分组默认配置的quotaSize/quotaFiles检查，超过配额的请求在读取请求体之前拒绝；
+ * 同时进行的上传都会通过检查，配额是软限制，最多超出正在上传的文件大小
+ */
+@Component
+public class StorageQuota implements PublicMetrics {
+	private static final String USAGE_FILE = "usage.properties";
+	private static final String BYTES_SUFFIX = ".bytes";
+	private static final String FILES_SUFFIX = ".files";
+	/** 正常停止时保存为true，启动时不为true说明上次异常退出，用量可能不准确，尽快校正 */
+	private static final String CLEAN_KEY = "clean";
+	private final Logger logger = LoggerFactory.getLogger(getClass());
+	@Value("${fs.dir}")
+	private String fileDir;
+	/** 后台校正的间隔（毫秒） */
+	@Value("${fs.quota.reconcile-interval:86400000}")
+	private long reconcileInterval;
+	/** 没有可信的已保存用量时，启动后第一次校正的延迟（毫秒） */
+	@Value("${fs.quota.reconcile-delay:60000}")
+	private long reconcileDelay;
+	/** 校正时每秒最多检查的目录项数 */
+	@Value("${fs.quota.scan-rate:10000}")
+	private int scanRate;
+	private File usageFile;
+	private final Map<String, Usage> usageMap = new ConcurrentHashMap<>();
+	private ScheduledExecutorService reconcileExecutor;
+
+	@PostConstruct
+	public void init() throws IOException {
+		File dir = new File(fileDir, ".meta");
+		FileUtils.forceMkdir(dir);
+		usageFile = new File(dir, USAGE_FILE);
+	}
+
+	/**
+	 * 加载已保存的用量，并开始定期校正
+	 *
+	 * @param groupDirs
+	 *            获取当前所有分组及其文件夹
+	 */
+	public synchronized void start(Supplier<Map<String, File>> groupDirs) {
+		if (reconcileExecutor != null) {
+			return;
+		}
+		boolean clean = load();
+		CustomizableThreadFactory threadFactory = new CustomizableThreadFactory("quota-reconcile-");
+		threadFactory.setDaemon(true);
+		threadFactory.setThreadPriority(Thread.MIN_PRIORITY);
+		reconcileExecutor = Executors.newSingleThreadScheduledExecutor(threadFactory);
+		reconcileExecutor.scheduleWithFixedDelay(() -> reconcile(groupDirs.get()),
+				clean ? reconcileInterval : reconcileDelay, reconcileInterval, TimeUnit.MILLISECONDS);
+	}
+
+	@PreDestroy
+	public synchronized void destroy() {
+		if (reconcileExecutor != null) {
+			reconcileExecutor.shutdownNow();
+			save(true);
+		}
+	}
+
+	/**
+	 * 分组中增加或减少了文件
+	 *
+	 * @param group
+	 *            文件分组
+	 * @param bytes
+	 *            增加的字节数，减少时为负数
+	 * @param files
+	 *            增加的文件数，减少时为负数
+	 */
+	public void add(String group, long bytes, int files) {
+		usageMap.computeIfAbsent(group, key -> new Usage()).add(bytes, files);
+	}
+
+	/**
+	 * 判断分组再保存一个指定大小的文件后是否仍在配额之内
+	 *
+	 * @param group
+	 *            文件分组
+	 * @param config
+	 *            分组的默认配置
+	 * @param bytes
+	 *            要保存的字节数，未知时为负数
+	 */
+	public boolean allows(String group, FileConfigInfo config, long bytes) {
+		Usage usage = usageMap.get(group);
+		if (usage == null) {
+			return true;
+		}
+		if (config.getQuotaSize() != null && config.getQuotaSize() > 0
+				&& usage.getBytes() + Math.max(bytes, 0) > config.getQuotaSize()) {
+			return false;
+		}
+		return config.getQuotaFiles() == null || config.getQuotaFiles() <= 0
+				|| usage.getFiles() + 1 <= config.getQuotaFiles();
+	}
+
+	/**
+	 * 获取分组当前的用量
+	 *
+	 * @return 字节数和文件数
+	 */
+	public long[] getUsage(String group) {
+		Usage usage = usageMap.get(group);
+		return usage == null ? new long[2] : new long[] { usage.getBytes(), usage.getFiles() };
+	}
+
+	/**
+	 * 定期保存用量
+	 */
+	@Scheduled(fixedDelayString = "${fs.quota.persist-interval:60000}")
+	public synchronized void persist() {
+		if (reconcileExecutor != null) {
+			save(false);
+		}
+	}
+
+	@Override
+	public Collection<Metric<?>> metrics() {
+		List<Metric<?>> metrics = new ArrayList<>();
+		usageMap.forEach((group, usage) -> {
+			metrics.add(new Metric<Long>("fs.quota.used-bytes." + group, usage.getBytes()));
+			metrics.add(new Metric<Long>("fs.quota.files." + group, usage.getFiles()));
+		});
+		return metrics;
+	}
+
+	/**
+	 * 依次扫描所有分组的文件夹，校正用量
+	 */
+	private void reconcile(Map<String, File> groupDirs) {
+		long start = System.currentTimeMillis();
+		for (Map.Entry<String, File> entry : groupDirs.entrySet()) {
+			Usage usage = usageMap.computeIfAbsent(entry.getKey(), key -> new Usage());
+			usage.beginScan();
+			try {
+				long[] scanned = scan(entry.getValue());
+				long[] before = usage.endScan(scanned[0], scanned[1]);
+				if (before[0] != usage.getBytes() || before[1] != usage.getFiles()) {
+					logger.info("reconciled usage of group:{} from {} bytes/{} files to {} bytes/{} files",
+							entry.getKey(), before[0], before[1], usage.getBytes(), usage.getFiles());
+				}
+			} catch (InterruptedIOException e) {
+				usage.cancelScan();
+				return;
+			} catch (IOException e) {
+				usage.cancelScan();
+				logger.warn("failed to reconcile usage of group:{}", entry.getKey(), e);
+			}
+		}
+		save(false);
+		logger.info("reconciled usage of {} groups in {} ms", groupDirs.size(), System.currentTimeMillis() - start);
+	}
+
+	/**
+	 * 统计文件夹（包括分桶文件夹）中的文件大小和数量，不包括以.开头的文件和文件夹；按scanRate限速
+	 */
+	private long[] scan(File dir) throws IOException {
+		long[] result = new long[2];
+		Path root = dir.toPath();
+		if (!Files.isDirectory(root)) {
+			return result;
+		}
+		long startNanos = System.nanoTime();
+		long[] visited = new long[1];
+		Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult preVisitDirectory(Path path, BasicFileAttributes attrs) throws IOException {
+				pace();
+				return !path.equals(root) && path.getFileName().toString().startsWith(".")
+						? FileVisitResult.SKIP_SUBTREE : FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult visitFile(Path path, BasicFileAttributes attrs) throws IOException {
+				pace();
+				if (attrs.isRegularFile() && !path.getFileName().toString().startsWith(".")) {
+					result[0] += attrs.size();
+					result[1]++;
+				}
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult visitFileFailed(Path path, IOException e) throws IOException {
+				// 扫描期间被删除或移动
+				return FileVisitResult.CONTINUE;
+			}
+
+			private void pace() throws InterruptedIOException {
+				if (scanRate <= 0 || ++visited[0] % 1000 != 0) {
+					return;
+				}
+				long wait = visited[0] * 1000000000L / scanRate - (System.nanoTime() - startNanos);
+				if (wait > 0) {
+					try {
+						TimeUnit.NANOSECONDS.sleep(wait);
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						throw new InterruptedIOException("reconcile interrupted");
+					}
+				}
+			}
+		});
+		return result;
+	}
+
+	/**
+	 * 加载已保存的用量
+	 *
+	 * @return 上次是否正常停止
+	 */
+	private boolean load() {
+		if (!usageFile.exists()) {
+			return false;
+		}
+		Properties properties = new Properties();
+		try (InputStream in = Files.newInputStream(usageFile.toPath())) {
+			properties.load(in);
+		} catch (IOException e) {
+			logger.warn("failed to load group usage", e);
+			return false;
+		}
+		for (String key : properties.stringPropertyNames()) {
+			if (key.endsWith(BYTES_SUFFIX)) {
+				String group = key.substring(0, key.length() - BYTES_SUFFIX.length());
+				try {
+					usageMap.computeIfAbsent(group, k -> new Usage()).set(Long.parseLong(properties.getProperty(key)),
+							Long.parseLong(properties.getProperty(group + FILES_SUFFIX, "0")));
+				} catch (NumberFormatException e) {
+					logger.warn("invalid usage of group:{}, skip", group);
+				}
+			}
+		}
+		return Boolean.parseBoolean(properties.getProperty(CLEAN_KEY));
+	}
+
+	private void save(boolean clean) {
+		Properties properties = new Properties();
+		usageMap.forEach((group, usage) -> {
+			properties.setProperty(group + BYTES_SUFFIX, String.valueOf(usage.getBytes()));
+			properties.setProperty(group + FILES_SUFFIX, String.valueOf(usage.getFiles()));
+		});
+		properties.setProperty(CLEAN_KEY, String.valueOf(clean));
+		File tmpFile = new File(usageFile.getParentFile(), USAGE_FILE + ".tmp");
+		try {
+			try (OutputStream out = Files.newOutputStream(tmpFile.toPath())) {
+				properties.store(out, null);
+			}
+			Files.move(tmpFile.toPath(), usageFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			logger.warn("failed to save group usage", e);
+		}
+	}
+
+	/**
+	 * 一个分组的用量，扫描校正期间另外记录增量
+	 */
+	private static class Usage {
+		private long bytes;
+		private long files;
+		private long[] scanDelta;
+
+		synchronized void add(long deltaBytes, int deltaFiles) {
+			bytes += deltaBytes;
+			files += deltaFiles;
+			if (scanDelta != null) {
+				scanDelta[0] += deltaBytes;
+				scanDelta[1] += deltaFiles;
+			}
+		}
+
+		synchronized void set(long bytes, long files) {
+			this.bytes = bytes;
+			this.files = files;
+		}
+
+		synchronized long getBytes() {
+			return bytes;
+		}
+
+		synchronized long getFiles() {
+			return files;
+		}
+
+		synchronized void beginScan() {
+			scanDelta = new long[2];
+		}
+
+		/**
+		 * 扫描结果加上扫描期间的增量作为新的用量；扫描期间的变化可能已被扫描到，误差在下次校正时消除
+		 *
+		 * @return 校正前的用量
+		 */
+		synchronized long[] endScan(long scannedBytes, long scannedFiles) {
+			long[] before = { bytes, files };
+			bytes = scannedBytes + scanDelta[0];
+			files = scannedFiles + scanDelta[1];
+			scanDelta = null;
+			return before;
+		}
+
+		synchronized void cancelScan() {
+			scanDelta = null;
+		}
+	}
+}
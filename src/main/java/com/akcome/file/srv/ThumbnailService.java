@@ -0,0 +1,327 @@
+package com.akcome.file.srv;
+
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
+
+import org.apache.commons.io.FileUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.http.MediaType;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Component;
+
+import com.akcome.common.exception.BusinessException;
+import com.akcome.common.exception.SystemException;
+
+/**
+ * 图片缩略图：按宽、高和质量用javax.imageio生成缩小的图片，保存在分组文件夹的.thumbnails中，之后直接输出。
+ * 生成在有界的CPU线程池中进行，同一缩略图并发请求时只生成一次；原文件删除或过期时删除其所有缩略图
+ */
+@Component
+public class ThumbnailService implements PublicMetrics {
+	private static final String THUMBNAIL_DIR = ".thumbnails";
+	private static final String TMP_SUFFIX = ".tmp";
+	private final Logger logger = LoggerFactory.getLogger(getClass());
+	/** 生成缩略图的线程数，0表示CPU核数 */
+	@Value("${fs.thumbnail.threads:0}")
+	private int threads;
+	@Value("${fs.thumbnail.queue-size:64}")
+	private int queueSize;
+	/** 等待生成的最长时间（毫秒） */
+	@Value("${fs.thumbnail.timeout:30000}")
+	private long timeout;
+	/** 缩略图的最大宽度和高度 */
+	@Value("${fs.thumbnail.max-size:2048}")
+	private int maxSize;
+	/** 原图的最大像素数，超过时不生成，避免解码占用过多内存 */
+	@Value("${fs.thumbnail.max-source-pixels:50000000}")
+	private long maxSourcePixels;
+	@Autowired
+	private TransferMetrics transferMetrics;
+	private ThreadPoolExecutor imageExecutor;
+	private final Map<String, CompletableFuture<File>> generatingMap = new ConcurrentHashMap<>();
+	private final AtomicLong hitCount = new AtomicLong();
+	private final AtomicLong generatedCount = new AtomicLong();
+	private final AtomicLong rejectedCount = new AtomicLong();
+
+	@PostConstruct
+	public void init() {
+		int n = threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+		imageExecutor = new ThreadPoolExecutor(n, n, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<>(queueSize),
+				new CustomizableThreadFactory("thumbnail-"), new ThreadPoolExecutor.AbortPolicy());
+	}
+
+	@PreDestroy
+	public void destroy() {
+		imageExecutor.shutdownNow();
+	}
+
+	/**
+	 * 获取缩略图，不存在或早于原图时生成
+	 *
+	 * @param source
+	 *            原图
+	 * @param groupDir
+	 *            原图所在的分组文件夹
+	 * @param width
+	 *            最大宽度，为空时按高度等比缩放
+	 * @param height
+	 *            最大高度，为空时按宽度等比缩放
+	 * @param quality
+	 *            JPEG质量（1~100）
+	 * @return 缩略图文件
+	 * @throws BusinessException
+	 *             参数无效或原文件不是支持的图片
+	 * @throws SystemException
+	 *             线程池已满、生成超时或失败
+	 */
+	public File getThumbnail(File source, File groupDir, Integer width, Integer height, int quality)
+			throws BusinessException, SystemException {
+		if ((width == null && height == null) || !isValidSize(width) || !isValidSize(height) || quality < 1
+				|| quality > 100) {
+			throw new BusinessException("invalid thumbnail size:" + width + "x" + height + " quality:" + quality);
+		}
+		String format = isLossless(source.getName()) ? "png" : "jpg";
+		String variantName = (width == null ? "" : width) + "x" + (height == null ? "" : height)
+				+ ("jpg".equals(format) ? "q" + quality : "") + "." + format;
+		File variant = new File(getThumbnailDir(groupDir, source.getName()), variantName);
+		long sourceModified = source.lastModified();
+		if (variant.lastModified() >= sourceModified && variant.exists()) {
+			hitCount.incrementAndGet();
+			return variant;
+		}
+		CompletableFuture<File> future = new CompletableFuture<>();
+		CompletableFuture<File> generating = generatingMap.putIfAbsent(variant.getPath(), future);
+		if (generating == null) {
+			generating = future;
+			try {
+				imageExecutor.execute(() -> {
+					long start = System.nanoTime();
+					try {
+						generate(source, variant, width, height, quality, format);
+						generatedCount.incrementAndGet();
+						future.complete(variant);
+					} catch (Throwable e) {
+						future.completeExceptionally(e);
+					} finally {
+						generatingMap.remove(variant.getPath(), future);
+						transferMetrics.recordTime(TransferMetrics.THUMBNAIL_GENERATE, start);
+					}
+				});
+			} catch (RejectedExecutionException e) {
+				generatingMap.remove(variant.getPath(), future);
+				rejectedCount.incrementAndGet();
+				throw new SystemException("too many thumbnails generating");
+			}
+		}
+		try {
+			return generating.get(timeout, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new SystemException("interrupted while generating thumbnail", e);
+		} catch (TimeoutException e) {
+			throw new SystemException("thumbnail generating timeout", e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof BusinessException) {
+				throw (BusinessException) e.getCause();
+			}
+			throw new SystemException("failed to generate thumbnail", e.getCause());
+		}
+	}
+
+	/**
+	 * 获取缩略图的MIME类型，按缩略图实际的格式而不是原图的格式
+	 *
+	 * @param thumbnail
+	 *            getThumbnail返回的缩略图文件
+	 */
+	public String getContentType(File thumbnail) {
+		return thumbnail.getName().endsWith(".png") ? MediaType.IMAGE_PNG_VALUE : MediaType.IMAGE_JPEG_VALUE;
+	}
+
+	/**
+	 * 删除文件的所有缩略图
+	 *
+	 * @param groupDir
+	 *            文件所在的分组文件夹
+	 * @param fileName
+	 *            文件名
+	 */
+	public void delete(File groupDir, String fileName) {
+		File dir = getThumbnailDir(groupDir, fileName);
+		if (dir.exists()) {
+			FileUtils.deleteQuietly(dir);
+		}
+	}
+
+	@Override
+	public Collection<Metric<?>> metrics() {
+		List<Metric<?>> metrics = new ArrayList<>();
+		metrics.add(new Metric<Long>("fs.thumbnail.hits", hitCount.get()));
+		metrics.add(new Metric<Long>("fs.thumbnail.generated", generatedCount.get()));
+		metrics.add(new Metric<Long>("fs.thumbnail.rejected", rejectedCount.get()));
+		metrics.add(new Metric<Integer>("fs.thumbnail.queued", imageExecutor.getQueue().size()));
+		return metrics;
+	}
+
+	private boolean isValidSize(Integer size) {
+		return size == null || (size > 0 && size <= maxSize);
+	}
+
+	/**
+	 * 缩略图保存在分组文件夹的.thumbnails中，按原文件名分桶，每个原文件一个文件夹
+	 */
+	private File getThumbnailDir(File groupDir, String fileName) {
+		return ShardLayout.locate(new File(groupDir, THUMBNAIL_DIR), 1, fileName);
+	}
+
+	/**
+	 * PNG和GIF（可能有透明）生成PNG，其它生成JPEG
+	 */
+	private boolean isLossless(String fileName) {
+		String name = fileName.toLowerCase();
+		return name.endsWith(".png") || name.endsWith(".gif");
+	}
+
+	private void generate(File source, File variant, Integer width, Integer height, int quality, String format)
+			throws IOException, BusinessException {
+		BufferedImage image = read(source, width, height);
+		int[] size = fit(image.getWidth(), image.getHeight(), width, height);
+		BufferedImage thumbnail = scale(image, size[0], size[1], "png".equals(format));
+		File dir = variant.getParentFile();
+		if (!dir.isDirectory() && !dir.mkdirs() && !dir.isDirectory()) {
+			throw new IOException("failed to create folder:" + dir.getAbsolutePath());
+		}
+		File tmpFile = new File(dir, variant.getName() + TMP_SUFFIX);
+		try {
+			write(thumbnail, tmpFile, format, quality);
+			Files.move(tmpFile.toPath(), variant.toPath(), StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+		} finally {
+			tmpFile.delete();
+		}
+		if (!source.exists()) {
+			// 生成期间原文件被删除
+			FileUtils.deleteQuietly(dir);
+		}
+	}
+
+	/**
+	 * 读取原图，缩小倍数较大时按隔行隔列读取（至少保留目标尺寸的2倍），减少解码的内存和CPU
+	 */
+	private BufferedImage read(File source, Integer width, Integer height) throws IOException, BusinessException {
+		try (ImageInputStream in = ImageIO.createImageInputStream(source)) {
+			Iterator<ImageReader> readers = in == null ? null : ImageIO.getImageReaders(in);
+			if (readers == null || !readers.hasNext()) {
+				throw new BusinessException("unsupported image:" + source.getName());
+			}
+			ImageReader reader = readers.next();
+			try {
+				reader.setInput(in, true, true);
+				int sourceWidth = reader.getWidth(0);
+				int sourceHeight = reader.getHeight(0);
+				if ((long) sourceWidth * sourceHeight > maxSourcePixels) {
+					throw new BusinessException("image too large:" + sourceWidth + "x" + sourceHeight);
+				}
+				int[] size = fit(sourceWidth, sourceHeight, width, height);
+				int subsampling = Math.max(1, Math.min(sourceWidth / size[0], sourceHeight / size[1]) / 2);
+				ImageReadParam param = reader.getDefaultReadParam();
+				if (subsampling > 1) {
+					param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+				}
+				return reader.read(0, param);
+			} finally {
+				reader.dispose();
+			}
+		}
+	}
+
+	/**
+	 * 按比例缩放到不超过width×height，不放大
+	 */
+	private static int[] fit(int sourceWidth, int sourceHeight, Integer width, Integer height) {
+		double scale = 1;
+		if (width != null) {
+			scale = Math.min(scale, (double) width / sourceWidth);
+		}
+		if (height != null) {
+			scale = Math.min(scale, (double) height / sourceHeight);
+		}
+		return new int[] { Math.max(1, (int) Math.round(sourceWidth * scale)),
+				Math.max(1, (int) Math.round(sourceHeight * scale)) };
+	}
+
+	/**
+	 * 逐次缩小一半后再缩放到目标尺寸，双线性插值在缩小超过一半时会丢失细节
+	 */
+	private static BufferedImage scale(BufferedImage image, int width, int height, boolean alpha) {
+		int type = alpha ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB;
+		BufferedImage current = image;
+		int w = image.getWidth();
+		int h = image.getHeight();
+		do {
+			w = Math.max(width, w / 2);
+			h = Math.max(height, h / 2);
+			BufferedImage next = new BufferedImage(w, h, type);
+			Graphics2D g = next.createGraphics();
+			try {
+				g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+				g.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+				g.drawImage(current, 0, 0, w, h, null);
+			} finally {
+				g.dispose();
+			}
+			current = next;
+		} while (w != width || h != height);
+		return current;
+	}
+
+	private static void write(BufferedImage image, File file, String format, int quality) throws IOException {
+		ImageWriter writer = ImageIO.getImageWritersByFormatName(format).next();
+		try (ImageOutputStream out = ImageIO.createImageOutputStream(file)) {
+			writer.setOutput(out);
+			ImageWriteParam param = writer.getDefaultWriteParam();
+			if ("jpg".equals(format)) {
+				param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+				param.setCompressionQuality(quality / 100f);
+			}
+			writer.write(null, new IIOImage(image, null, null), param);
+		} finally {
+			writer.dispose();
+		}
+	}
+}
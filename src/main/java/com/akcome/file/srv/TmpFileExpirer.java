@@ -0,0 +1,179 @@
+package com.akcome.file.srv;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.stereotype.Component;
+
+/**
+ * 零时文件过期调度：每个零时文件按自己的到期时间进入延迟队列，到期后由单独的线程按限定速率删除。
+ * 文件被移动或删除时只需从索引中移除（O(1)），队列中残留的任务到期后直接丢弃
+ */
+@Component
+public class TmpFileExpirer implements PublicMetrics {
+	private final Logger logger = LoggerFactory.getLogger(getClass());
+	/** 每秒最多删除的文件数，0表示不限制 */
+	@Value("${fs.expiry.rate:50}")
+	private int rate;
+	private final DelayQueue<ExpiryTask> delayQueue = new DelayQueue<>();
+	private final Map<String, ExpiryTask> taskMap = new ConcurrentHashMap<>();
+	private final AtomicLong expiredCount = new AtomicLong();
+	/** 最近一个文件实际删除时间与到期时间的差（毫秒） */
+	private volatile long lastLag;
+	private volatile boolean running;
+	private Thread expireThread;
+
+	/**
+	 * 启动过期线程
+	 *
+	 * @param action
+	 *            文件到期后的删除操作
+	 */
+	public synchronized void start(Consumer<TmpFileInfo> action) {
+		if (running) {
+			return;
+		}
+		running = true;
+		expireThread = new Thread(() -> expireLoop(action), "tmp-file-expirer");
+		expireThread.setDaemon(true);
+		expireThread.start();
+	}
+
+	@PreDestroy
+	public synchronized void destroy() {
+		running = false;
+		if (expireThread != null) {
+			expireThread.interrupt();
+		}
+	}
+
+	/**
+	 * 添加零时文件的过期任务，同一文件重复添加时以最后一次为准
+	 *
+	 * @param fileInfo
+	 *            零时文件信息
+	 * @param deadline
+	 *            到期时间（毫秒时间戳）
+	 */
+	public void schedule(TmpFileInfo fileInfo, long deadline) {
+		ExpiryTask task = new ExpiryTask(fileInfo, deadline);
+		taskMap.put(fileInfo.getKey(), task);
+		delayQueue.offer(task);
+	}
+
+	/**
+	 * 取消零时文件的过期任务
+	 *
+	 * @param group
+	 *            文件分组
+	 * @param fileName
+	 *            文件名
+	 */
+	public void cancel(String group, String fileName) {
+		taskMap.remove(group + "/" + fileName);
+	}
+
+	/**
+	 * 立即取出所有已到期的文件，不受删除速率限制
+	 *
+	 * @return 已到期的文件
+	 */
+	public List<TmpFileInfo> drainExpired() {
+		List<ExpiryTask> tasks = new ArrayList<>();
+		delayQueue.drainTo(tasks);
+		List<TmpFileInfo> files = new ArrayList<>(tasks.size());
+		for (ExpiryTask task : tasks) {
+			if (claim(task)) {
+				files.add(task.fileInfo);
+			}
+		}
+		return files;
+	}
+
+	/**
+	 * 等待过期的文件数
+	 */
+	public int getBacklog() {
+		return taskMap.size();
+	}
+
+	@Override
+	public Collection<Metric<?>> metrics() {
+		List<Metric<?>> metrics = new ArrayList<>();
+		metrics.add(new Metric<Integer>("fs.expiry.backlog", taskMap.size()));
+		ExpiryTask head = delayQueue.peek();
+		long headLag = head == null ? 0 : Math.max(0, System.currentTimeMillis() - head.deadline);
+		metrics.add(new Metric<Long>("fs.expiry.head-lag", headLag));
+		metrics.add(new Metric<Long>("fs.expiry.last-lag", lastLag));
+		metrics.add(new Metric<Long>("fs.expiry.expired", expiredCount.get()));
+		return metrics;
+	}
+
+	private void expireLoop(Consumer<TmpFileInfo> action) {
+		long interval = rate > 0 ? TimeUnit.SECONDS.toNanos(1) / rate : 0;
+		long nextTime = System.nanoTime();
+		while (running) {
+			try {
+				ExpiryTask task = delayQueue.take();
+				if (!claim(task)) {
+					continue;
+				}
+				// 按限定速率删除，避免大量文件同时到期时集中删除
+				long wait = nextTime - System.nanoTime();
+				if (wait > 0) {
+					TimeUnit.NANOSECONDS.sleep(wait);
+				}
+				nextTime = Math.max(nextTime, System.nanoTime() - interval) + interval;
+				lastLag = System.currentTimeMillis() - task.deadline;
+				action.accept(task.fileInfo);
+				expiredCount.incrementAndGet();
+			} catch (InterruptedException e) {
+				running = false;
+			} catch (Exception e) {
+				logger.warn("failed to expire tmp file", e);
+			}
+		}
+	}
+
+	/**
+	 * 任务仍在索引中时将其移除并返回true；已取消或被新任务替换的返回false
+	 */
+	private boolean claim(ExpiryTask task) {
+		return taskMap.remove(task.fileInfo.getKey(), task);
+	}
+
+	private static class ExpiryTask implements Delayed {
+		private final TmpFileInfo fileInfo;
+		private final long deadline;
+
+		ExpiryTask(TmpFileInfo fileInfo, long deadline) {
+			this.fileInfo = fileInfo;
+			this.deadline = deadline;
+		}
+
+		@Override
+		public long getDelay(TimeUnit unit) {
+			return unit.convert(deadline - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+		}
+
+		@Override
+		public int compareTo(Delayed o) {
+			return Long.compare(deadline, ((ExpiryTask) o).deadline);
+		}
+	}
+}
@@ -0,0 +1,23 @@
+package com.akcome.file.srv;
+
+import lombok.Data;
+
+/**
+ * 零时文件信息，用于文件过期清理
+ */
+@Data
+public class TmpFileInfo {
+	private String fileName;
+	private String group;
+	private long timeStamp;
+
+	public TmpFileInfo(String fileName, String group, long timeStamp) {
+		this.fileName = fileName;
+		this.group = group;
+		this.timeStamp = timeStamp;
+	}
+
+	public String getKey() {
+		return group + "/" + fileName;
+	}
+}
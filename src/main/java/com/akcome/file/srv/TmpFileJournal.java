@@ -0,0 +1,241 @@
+package com.akcome.file.srv;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.apache.commons.io.FileUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * 零时文件过期索引的持久化日志：零时文件保存后追加一条A记录，移动、删除或过期清理后追加一条R记录，
+ * 启动时重放日志恢复未清理的零时文件。记录由单独的线程批量写入（组提交），上传时只需入队。
+ * 日志中已失效的记录过多时，重写为只包含有效记录的新日志
+ */
+@Component
+public class TmpFileJournal {
+	private static final String JOURNAL_FILE = "expiry.log";
+	private static final String ADD = "A";
+	private static final String RETIRE = "R";
+	private final Logger logger = LoggerFactory.getLogger(getClass());
+	@Value("${fs.tmp.dir}")
+	private String fileTmpDir;
+	@Value("${fs.journal.sync:false}")
+	private boolean sync;
+	@Value("${fs.journal.compact-threshold:100000}")
+	private int compactThreshold;
+	private File journalFile;
+	private final Map<String, TmpFileInfo> liveMap = new ConcurrentHashMap<>();
+	private final BlockingQueue<String> pendingQueue = new LinkedBlockingQueue<>();
+	private FileOutputStream journalStream;
+	private Writer writer;
+	/** 当前日志文件中的记录数 */
+	private long recordCount;
+	private volatile boolean running;
+	private Thread writerThread;
+
+	@PostConstruct
+	public void init() throws IOException {
+		File dir = new File(fileTmpDir, ".journal");
+		FileUtils.forceMkdir(dir);
+		journalFile = new File(dir, JOURNAL_FILE);
+		replay();
+		// 启动时先压缩一次，去掉已失效的记录
+		compact();
+		running = true;
+		writerThread = new Thread(this::writeLoop, "tmp-file-journal");
+		writerThread.setDaemon(true);
+		writerThread.start();
+	}
+
+	@PreDestroy
+	public void destroy() {
+		running = false;
+		writerThread.interrupt();
+		try {
+			writerThread.join(5000);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * 记录新保存的零时文件
+	 *
+	 * @param fileInfo
+	 *            零时文件信息
+	 */
+	public void append(TmpFileInfo fileInfo) {
+		if (!isValid(fileInfo.getGroup()) || !isValid(fileInfo.getFileName())) {
+			logger.warn("invalid tmp file name:{}, skip journal", fileInfo.getFileName());
+			return;
+		}
+		liveMap.put(fileInfo.getKey(), fileInfo);
+		pendingQueue.offer(ADD + "\t" + fileInfo.getTimeStamp() + "\t" + fileInfo.getGroup() + "\t"
+				+ fileInfo.getFileName());
+	}
+
+	/**
+	 * 零时文件已被移动、删除或清理，不再需要过期处理
+	 *
+	 * @param group
+	 *            文件分组
+	 * @param fileName
+	 *            文件名
+	 */
+	public void retire(String group, String fileName) {
+		if (liveMap.remove(group + "/" + fileName) != null) {
+			pendingQueue.offer(RETIRE + "\t" + group + "\t" + fileName);
+		}
+	}
+
+	/**
+	 * 判断零时文件是否仍需过期处理
+	 */
+	public boolean isLive(TmpFileInfo fileInfo) {
+		return liveMap.containsKey(fileInfo.getKey());
+	}
+
+	/**
+	 * 获取所有仍需过期处理的零时文件，按保存时间排序
+	 */
+	public List<TmpFileInfo> getLiveFiles() {
+		List<TmpFileInfo> list = new ArrayList<>(liveMap.values());
+		list.sort(Comparator.comparingLong(TmpFileInfo::getTimeStamp));
+		return list;
+	}
+
+	private void replay() throws IOException {
+		if (!journalFile.exists()) {
+			return;
+		}
+		long start = System.currentTimeMillis();
+		try (BufferedReader reader = new BufferedReader(
+				new InputStreamReader(Files.newInputStream(journalFile.toPath()), StandardCharsets.UTF_8))) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				String[] fields = line.split("\t");
+				try {
+					if (ADD.equals(fields[0]) && fields.length == 4) {
+						TmpFileInfo fileInfo = new TmpFileInfo(fields[3], fields[2], Long.parseLong(fields[1]));
+						liveMap.put(fileInfo.getKey(), fileInfo);
+					} else if (RETIRE.equals(fields[0]) && fields.length == 3) {
+						liveMap.remove(fields[1] + "/" + fields[2]);
+					} else {
+						logger.warn("invalid journal record:{}, skip", line);
+					}
+				} catch (NumberFormatException e) {
+					// 最后一条记录可能因宕机只写了一半
+					logger.warn("invalid journal record:{}, skip", line);
+				}
+			}
+		}
+		logger.info("replayed tmp file journal in {} ms, {} live files", System.currentTimeMillis() - start,
+				liveMap.size());
+	}
+
+	private void writeLoop() {
+		List<String> batch = new ArrayList<>();
+		while (running || !pendingQueue.isEmpty()) {
+			try {
+				String record = pendingQueue.poll(1, TimeUnit.SECONDS);
+				if (record == null) {
+					continue;
+				}
+				batch.add(record);
+				pendingQueue.drainTo(batch);
+				write(batch);
+				batch.clear();
+				if (recordCount > compactThreshold && recordCount > liveMap.size() * 2L) {
+					compact();
+				}
+			} catch (InterruptedException e) {
+				// 停止时写完队列中剩余的记录
+				running = false;
+			} catch (Exception e) {
+				logger.warn("failed to write tmp file journal", e);
+				batch.clear();
+			}
+		}
+		closeWriter();
+	}
+
+	private void write(List<String> batch) throws IOException {
+		if (writer == null) {
+			openWriter();
+		}
+		for (String record : batch) {
+			writer.write(record);
+			writer.write('\n');
+		}
+		writer.flush();
+		if (sync) {
+			journalStream.getFD().sync();
+		}
+		recordCount += batch.size();
+	}
+
+	/**
+	 * 将有效记录写入新日志文件并原子替换旧日志
+	 */
+	private void compact() throws IOException {
+		closeWriter();
+		File tmpFile = new File(journalFile.getParentFile(), JOURNAL_FILE + ".compact");
+		List<TmpFileInfo> files = getLiveFiles();
+		try (FileOutputStream fos = new FileOutputStream(tmpFile);
+				Writer out = new OutputStreamWriter(fos, StandardCharsets.UTF_8)) {
+			for (TmpFileInfo fileInfo : files) {
+				out.write(ADD + "\t" + fileInfo.getTimeStamp() + "\t" + fileInfo.getGroup() + "\t"
+						+ fileInfo.getFileName() + "\n");
+			}
+			out.flush();
+			fos.getFD().sync();
+		}
+		Files.move(tmpFile.toPath(), journalFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+		recordCount = files.size();
+		openWriter();
+		logger.info("compacted tmp file journal, {} live files", files.size());
+	}
+
+	private void openWriter() throws IOException {
+		journalStream = new FileOutputStream(journalFile, true);
+		writer = new OutputStreamWriter(journalStream, StandardCharsets.UTF_8);
+	}
+
+	private void closeWriter() {
+		if (writer != null) {
+			try {
+				writer.close();
+			} catch (IOException e) {
+				logger.warn("failed to close tmp file journal", e);
+			}
+			writer = null;
+		}
+	}
+
+	private boolean isValid(String value) {
+		return value != null && value.indexOf('\t') < 0 && value.indexOf('\n') < 0 && value.indexOf('\r') < 0;
+	}
+}
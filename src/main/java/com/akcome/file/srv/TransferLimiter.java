@@ -0,0 +1,248 @@
+package com.akcome.file.srv;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import com.akcome.file.config.FileConfigInfo;
+import com.akcome.file.config.FileConfigRegistry;
+
+/**
+ * 按分组限制上传和下载：同时进行的传输数（公平信号量）和总带宽（令牌桶）。
+ * 限制值取自分组默认配置的maxConcurrency和maxBandwidth，配置重新加载后自动使用新的限制
+ */
+@Component
+public class TransferLimiter {
+	@Autowired
+	private FileConfigRegistry fileConfigRegistry;
+	/** 没有空闲传输名额时的最大等待时间（毫秒），0表示立即拒绝 */
+	@Value("${fs.qos.queue-timeout:0}")
+	private long queueTimeout;
+	private final Map<String, GroupLimit> limitMap = new ConcurrentHashMap<>();
+
+	/**
+	 * 获取分组的传输名额，没有空闲名额时按到达顺序等待，超过等待时间返回null
+	 *
+	 * @param group
+	 *            文件分组
+	 * @return 传输名额，传输结束后必须调用release；返回null表示超过并发限制
+	 * @throws InterruptedException
+	 */
+	public Permit acquire(String group) throws InterruptedException {
+		Semaphore semaphore = getLimit(group).semaphore;
+		if (semaphore == null) {
+			return Permit.UNLIMITED;
+		}
+		if (semaphore.tryAcquire(queueTimeout, TimeUnit.MILLISECONDS)) {
+			return new Permit(semaphore);
+		}
+		return null;
+	}
+
+	/**
+	 * 同时获取多个分组的传输名额（如打包下载多个分组的文件），按分组名顺序获取，避免相互等待；任一分组没有名额时归还已获取的名额
+	 *
+	 * @param groups
+	 *            文件分组，可以重复
+	 * @return 包含所有分组名额的传输名额，传输结束后必须调用release；返回null表示有分组超过并发限制
+	 * @throws InterruptedException
+	 */
+	public Permit acquire(Collection<String> groups) throws InterruptedException {
+		List<Permit> permits = new ArrayList<>();
+		boolean acquired = false;
+		try {
+			for (String group : new TreeSet<>(groups)) {
+				Permit permit = acquire(group);
+				if (permit == null) {
+					return null;
+				}
+				permits.add(permit);
+			}
+			acquired = true;
+		} finally {
+			if (!acquired) {
+				permits.forEach(Permit::release);
+			}
+		}
+		return new Permit(null) {
+			@Override
+			public void release() {
+				permits.forEach(Permit::release);
+			}
+		};
+	}
+
+	/**
+	 * 判断分组是否限制了带宽
+	 */
+	public boolean isBandwidthLimited(String group) {
+		return group != null && getLimit(group).bucket != null;
+	}
+
+	/**
+	 * 判断分组是否限制了带宽或并发数。sendfile在请求处理返回后才由容器输出，既不能限速，传输名额也已归还，
+	 * 这些分组下载时不使用sendfile
+	 */
+	public boolean isLimited(String group) {
+		if (group == null) {
+			return false;
+		}
+		GroupLimit limit = getLimit(group);
+		return limit.bucket != null || limit.semaphore != null;
+	}
+
+	/**
+	 * 从分组的令牌桶中预留size个字节，返回需要等待的纳秒数；桶中令牌不足时允许透支，由等待时间偿还
+	 *
+	 * @param group
+	 *            文件分组
+	 * @param size
+	 *            字节数
+	 * @return 需要等待的纳秒数，不限制带宽时返回0
+	 */
+	public long reserve(String group, long size) {
+		if (group == null || size <= 0) {
+			return 0;
+		}
+		TokenBucket bucket = getLimit(group).bucket;
+		return bucket == null ? 0 : bucket.reserve(size);
+	}
+
+	/**
+	 * 按分组带宽限制等待，用于同步的上传下载循环
+	 *
+	 * @param group
+	 *            文件分组
+	 * @param size
+	 *            本次传输的字节数
+	 * @throws InterruptedIOException
+	 */
+	public void throttle(String group, long size) throws InterruptedIOException {
+		long wait = reserve(group, size);
+		if (wait > 0) {
+			try {
+				TimeUnit.NANOSECONDS.sleep(wait);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("transfer interrupted");
+			}
+		}
+	}
+
+	/**
+	 * 包装输入流，读取时按分组带宽限制等待
+	 *
+	 * @param in
+	 *            输入流
+	 * @param group
+	 *            文件分组
+	 * @return 限速的输入流，分组不限制带宽时返回原输入流
+	 */
+	public InputStream throttle(InputStream in, String group) {
+		if (!isBandwidthLimited(group)) {
+			return in;
+		}
+		return new FilterInputStream(in) {
+			@Override
+			public int read() throws IOException {
+				int b = super.read();
+				if (b >= 0) {
+					throttle(group, 1);
+				}
+				return b;
+			}
+
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+				int read = super.read(b, off, len);
+				throttle(group, read);
+				return read;
+			}
+		};
+	}
+
+	private GroupLimit getLimit(String group) {
+		FileConfigInfo config = fileConfigRegistry.getIndex().getConfig(group, null);
+		Long bandwidth = config == null ? null : config.getMaxBandwidth();
+		Integer concurrency = config == null ? null : config.getMaxConcurrency();
+		GroupLimit limit = limitMap.get(group);
+		if (limit == null || !limit.matches(bandwidth, concurrency)) {
+			// 配置变化时替换，已获取的名额归还给原来的信号量
+			limit = limitMap.compute(group, (k, v) -> v != null && v.matches(bandwidth, concurrency) ? v
+					: new GroupLimit(bandwidth, concurrency));
+		}
+		return limit;
+	}
+
+	/**
+	 * 传输名额
+	 */
+	public static class Permit {
+		private static final Permit UNLIMITED = new Permit(null);
+		private final Semaphore semaphore;
+
+		private Permit(Semaphore semaphore) {
+			this.semaphore = semaphore;
+		}
+
+		public void release() {
+			if (semaphore != null) {
+				semaphore.release();
+			}
+		}
+	}
+
+	private static class GroupLimit {
+		private final Long bandwidth;
+		private final Integer concurrency;
+		private final TokenBucket bucket;
+		private final Semaphore semaphore;
+
+		GroupLimit(Long bandwidth, Integer concurrency) {
+			this.bandwidth = bandwidth;
+			this.concurrency = concurrency;
+			this.bucket = bandwidth != null && bandwidth > 0 ? new TokenBucket(bandwidth) : null;
+			this.semaphore = concurrency != null && concurrency > 0 ? new Semaphore(concurrency, true) : null;
+		}
+
+		boolean matches(Long bandwidth, Integer concurrency) {
+			return Objects.equals(this.bandwidth, bandwidth) && Objects.equals(this.concurrency, concurrency);
+		}
+	}
+
+	/**
+	 * 令牌桶：每秒补充rate个字节的令牌，最多积累1秒的令牌
+	 */
+	private static class TokenBucket {
+		private final long rate;
+		private double tokens;
+		private long lastTime = System.nanoTime();
+
+		TokenBucket(long rate) {
+			this.rate = rate;
+			this.tokens = rate;
+		}
+
+		synchronized long reserve(long size) {
+			long now = System.nanoTime();
+			tokens = Math.min(rate, tokens + (now - lastTime) * rate / 1e9);
+			lastTime = now;
+			tokens -= size;
+			return tokens >= 0 ? 0 : (long) (-tokens * 1e9 / rate);
+		}
+	}
+}
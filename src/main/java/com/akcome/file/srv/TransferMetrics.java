@@ -0,0 +1,145 @@
+package com.akcome.file.srv;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.stereotype.Component;
+
+/**
+ * 文件传输的指标：各分组上传下载的字节数、各阶段的耗时直方图、正在进行的传输数，通过actuator的/metrics输出。
+ * 交给tomcat sendfile输出的下载在请求处理返回后才开始传输，无法知道何时结束以及是否传输完整，
+ * 这些下载的字节数和耗时单独记录，不计入download的字节数、总耗时和正在进行的下载数。记录时只使用原子操作，不加锁
+ */
+@Component
+public class TransferMetrics implements PublicMetrics {
+	public static final String UPLOAD = "upload";
+	public static final String DOWNLOAD = "download";
+	/** 容器解析multipart请求 */
+	public static final String UPLOAD_PARSE = "upload.parse";
+	public static final String UPLOAD_CONFIG = "upload.config";
+	/** 写入分组文件夹 */
+	public static final String UPLOAD_WRITE = "upload.write";
+	public static final String UPLOAD_TOTAL = "upload.total";
+	public static final String DOWNLOAD_CONFIG = "download.config";
+	/** 输出响应，sendfile和异步输出时只包含交给容器或IO线程之前的部分 */
+	public static final String DOWNLOAD_WRITE = "download.write";
+	public static final String DOWNLOAD_TOTAL = "download.total";
+	/** 使用sendfile的下载，只包含交给容器之前的部分 */
+	public static final String DOWNLOAD_SENDFILE = "download.sendfile";
+	public static final String FILE_DELETE = "file.delete";
+	public static final String FILE_SWITCH = "file.switch";
+	public static final String FILE_EXPIRE = "file.expire";
+	/** 生成缩略图，不包括排队等待的时间 */
+	public static final String THUMBNAIL_GENERATE = "thumbnail.generate";
+	/** 打包下载多个文件，从开始输出到最后一个文件写完 */
+	public static final String ARCHIVE_WRITE = "archive.write";
+	private static final double[] PERCENTILES = { 50, 99, 99.9 };
+	private static final String[] PERCENTILE_NAMES = { "p50", "p99", "p999" };
+	private final Map<String, LatencyHistogram> histogramMap = new ConcurrentHashMap<>();
+	private final Map<String, LongAdder> uploadBytesMap = new ConcurrentHashMap<>();
+	private final Map<String, LongAdder> downloadBytesMap = new ConcurrentHashMap<>();
+	private final Map<String, LongAdder> sendfileBytesMap = new ConcurrentHashMap<>();
+	private final AtomicInteger uploadsInFlight = new AtomicInteger();
+	private final AtomicInteger downloadsInFlight = new AtomicInteger();
+
+	/**
+	 * 记录从startNanos到现在的耗时
+	 *
+	 * @param name
+	 *            阶段名
+	 * @param startNanos
+	 *            开始时间（System.nanoTime()）
+	 */
+	public void recordTime(String name, long startNanos) {
+		getHistogram(name).record(System.nanoTime() - startNanos);
+	}
+
+	public void addUploadBytes(String group, long bytes) {
+		getCounter(uploadBytesMap, group).add(bytes);
+	}
+
+	public void addDownloadBytes(String group, long bytes) {
+		getCounter(downloadBytesMap, group).add(bytes);
+	}
+
+	/**
+	 * 交给sendfile输出的字节数，客户端中途断开时实际输出的会更少
+	 */
+	public void addSendfileBytes(String group, long bytes) {
+		getCounter(sendfileBytesMap, group).add(bytes);
+	}
+
+	/**
+	 * 传输开始
+	 *
+	 * @param type
+	 *            UPLOAD或DOWNLOAD
+	 * @return 开始时间，传输结束时传给end
+	 */
+	public long begin(String type) {
+		(UPLOAD.equals(type) ? uploadsInFlight : downloadsInFlight).incrementAndGet();
+		return System.nanoTime();
+	}
+
+	/**
+	 * 传输结束，记录总耗时
+	 */
+	public void end(String type, long startNanos) {
+		if (UPLOAD.equals(type)) {
+			uploadsInFlight.decrementAndGet();
+			recordTime(UPLOAD_TOTAL, startNanos);
+		} else {
+			downloadsInFlight.decrementAndGet();
+			recordTime(DOWNLOAD_TOTAL, startNanos);
+		}
+	}
+
+	/**
+	 * 下载已交给sendfile输出，不再计入正在进行的下载数，耗时记录到DOWNLOAD_SENDFILE而不是总耗时
+	 */
+	public void endSendfile(long startNanos) {
+		downloadsInFlight.decrementAndGet();
+		recordTime(DOWNLOAD_SENDFILE, startNanos);
+	}
+
+	@Override
+	public Collection<Metric<?>> metrics() {
+		List<Metric<?>> metrics = new ArrayList<>();
+		metrics.add(new Metric<Integer>("fs.transfer.upload.in-flight", uploadsInFlight.get()));
+		metrics.add(new Metric<Integer>("fs.transfer.download.in-flight", downloadsInFlight.get()));
+		uploadBytesMap.forEach((group, bytes) -> metrics
+				.add(new Metric<Long>("fs.transfer.upload.bytes." + group, bytes.sum())));
+		downloadBytesMap.forEach((group, bytes) -> metrics
+				.add(new Metric<Long>("fs.transfer.download.bytes." + group, bytes.sum())));
+		sendfileBytesMap.forEach((group, bytes) -> metrics
+				.add(new Metric<Long>("fs.transfer.sendfile.bytes." + group, bytes.sum())));
+		histogramMap.forEach((name, histogram) -> {
+			String prefix = "fs.latency." + name + ".";
+			metrics.add(new Metric<Long>(prefix + "count", histogram.getCount()));
+			metrics.add(new Metric<Double>(prefix + "mean", histogram.getMean()));
+			metrics.add(new Metric<Double>(prefix + "max", histogram.getMax()));
+			for (int i = 0; i < PERCENTILES.length; i++) {
+				metrics.add(new Metric<Double>(prefix + PERCENTILE_NAMES[i], histogram.getPercentile(PERCENTILES[i])));
+			}
+		});
+		return metrics;
+	}
+
+	private LatencyHistogram getHistogram(String name) {
+		// 先get，已存在时不进入computeIfAbsent的锁
+		LatencyHistogram histogram = histogramMap.get(name);
+		return histogram != null ? histogram : histogramMap.computeIfAbsent(name, k -> new LatencyHistogram());
+	}
+
+	private static LongAdder getCounter(Map<String, LongAdder> map, String group) {
+		LongAdder counter = map.get(group);
+		return counter != null ? counter : map.computeIfAbsent(group, k -> new LongAdder());
+	}
+}
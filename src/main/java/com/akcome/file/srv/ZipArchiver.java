@@ -0,0 +1,181 @@
+package com.akcome.file.srv;
+
+import java.io.File;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import javax.annotation.PostConstruct;
+import javax.servlet.ServletContext;
+
+import org.apache.commons.io.FilenameUtils;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.util.StringUtils;
+
+/**
+ * 将多个文件打包成ZIP直接写入输出流，不生成临时文件：逐个读取文件并写入，内存占用只有一个缓冲区和每个文件的目录项；
+ * 已压缩的文件类型（图片、视频、压缩包等）使用STORED方式原样保存，先读一遍计算CRC再输出，不占用压缩的CPU；
+ * 单个文件或整个压缩包超过4G、文件数超过65535时由ZipOutputStream自动使用ZIP64格式
+ */
+@Component
+public class ZipArchiver {
+	@Value("${fs.archive.max-entries:10000}")
+	private int maxEntries;
+	@Value("${fs.archive.level:6}")
+	private int level;
+	@Value("${fs.archive.buffer-size:65536}")
+	private int bufferSize;
+	/** 不再压缩的文件类型，格式与分组配置的compressTypes相同 */
+	@Value("${fs.archive.stored-types:image/*,video/*,audio/*,zip,gz,tgz,bz2,xz,7z,rar,jar,apk,docx,xlsx,pptx,pdf}")
+	private String storedTypes;
+	@Autowired(required = false)
+	private ServletContext servletContext;
+	@Autowired
+	private TransferLimiter transferLimiter;
+	@Autowired
+	private TransferMetrics transferMetrics;
+	private FileTypeMatcher storedTypeMatcher;
+
+	@PostConstruct
+	public void init() {
+		storedTypeMatcher = new FileTypeMatcher(storedTypes);
+	}
+
+	/**
+	 * 将文件依次写入ZIP，写完后结束ZIP但不关闭输出流
+	 *
+	 * @param entries
+	 *            要打包的文件
+	 * @param os
+	 *            输出流，通常是response的输出流
+	 * @throws IOException
+	 *             读取文件或输出失败，此时已输出的内容不是完整的ZIP
+	 */
+	public void write(List<Entry> entries, OutputStream os) throws IOException {
+		long start = System.nanoTime();
+		byte[] buffer = new byte[bufferSize];
+		Set<String> names = new HashSet<>();
+		// 结束ZIP时不关闭response的输出流
+		ZipOutputStream zos = new ZipOutputStream(new FilterOutputStream(os) {
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException {
+				out.write(b, off, len);
+			}
+
+			@Override
+			public void close() throws IOException {
+				flush();
+			}
+		});
+		zos.setLevel(level < Deflater.NO_COMPRESSION || level > Deflater.BEST_COMPRESSION
+				? Deflater.DEFAULT_COMPRESSION : level);
+		for (Entry entry : entries) {
+			File file = entry.getFile();
+			ZipEntry zipEntry = new ZipEntry(uniqueName(names, entry.getName()));
+			zipEntry.setTime(file.lastModified());
+			long length = file.length();
+			if (isStored(entry.getName(), length)) {
+				zipEntry.setMethod(ZipEntry.STORED);
+				zipEntry.setSize(length);
+				zipEntry.setCompressedSize(length);
+				zipEntry.setCrc(crc(file, buffer));
+			}
+			zos.putNextEntry(zipEntry);
+			try (InputStream in = Files.newInputStream(file.toPath())) {
+				for (int n; (n = in.read(buffer)) >= 0;) {
+					transferLimiter.throttle(entry.getGroup(), n);
+					zos.write(buffer, 0, n);
+				}
+			}
+			zos.closeEntry();
+			transferMetrics.addDownloadBytes(entry.getGroup(), length);
+		}
+		zos.close();
+		transferMetrics.recordTime(TransferMetrics.ARCHIVE_WRITE, start);
+	}
+
+	/**
+	 * 一个ZIP中最多包含的文件数
+	 */
+	public int getMaxEntries() {
+		return maxEntries;
+	}
+
+	private boolean isStored(String name, long length) {
+		String contentType = servletContext == null ? null : servletContext.getMimeType(name);
+		return length == 0 || storedTypeMatcher.matches(name, contentType);
+	}
+
+	private long crc(File file, byte[] buffer) throws IOException {
+		CRC32 crc = new CRC32();
+		try (InputStream in = Files.newInputStream(file.toPath())) {
+			for (int n; (n = in.read(buffer)) >= 0;) {
+				crc.update(buffer, 0, n);
+			}
+		}
+		return crc.getValue();
+	}
+
+	/**
+	 * 去掉文件名中的路径，与已有的文件名重复时加上序号，如a.txt、a (1).txt
+	 */
+	private String uniqueName(Set<String> names, String name) {
+		name = FilenameUtils.getName(name);
+		if (!StringUtils.hasText(name)) {
+			name = "file";
+		}
+		String baseName = FilenameUtils.getBaseName(name);
+		String extension = FilenameUtils.getExtension(name);
+		String uniqueName = name;
+		for (int i = 1; !names.add(uniqueName.toLowerCase()); i++) {
+			uniqueName = baseName + " (" + i + ")" + (extension.isEmpty() ? "" : "." + extension);
+		}
+		return uniqueName;
+	}
+
+	/**
+	 * ZIP中的一个文件
+	 */
+	public static class Entry {
+		private final String group;
+		private final File file;
+		private final String name;
+
+		/**
+		 * @param group
+		 *            文件所在分组，用于带宽限制和统计
+		 * @param file
+		 *            文件
+		 * @param name
+		 *            在ZIP中的文件名
+		 */
+		public Entry(String group, File file, String name) {
+			this.group = group;
+			this.file = file;
+			this.name = name;
+		}
+
+		public String getGroup() {
+			return group;
+		}
+
+		public File getFile() {
+			return file;
+		}
+
+		public String getName() {
+			return name;
+		}
+	}
+}
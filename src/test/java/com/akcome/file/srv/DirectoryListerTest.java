@@ -0,0 +1,143 @@
+package com.akcome.file.srv;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Predicate;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.akcome.file.client.FileListPage;
+import com.akcome.file.client.FileStat;
+
+public class DirectoryListerTest {
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void listsAllFilesInPathOrder() throws IOException {
+		File dir = folder.getRoot();
+		List<String> expected = new ArrayList<>();
+		for (int i = 0; i < 10; i++) {
+			expected.add(createFile(dir, String.format("f%02d.txt", i)));
+		}
+		createFile(dir, ".f00.txt.gz");
+		new File(dir, ".thumbnails").mkdir();
+		createFile(new File(dir, ".thumbnails"), "t.jpg");
+
+		DirectoryLister lister = new DirectoryLister(1000, 100000);
+		assertEquals(expected, listAll(lister, dir, 3, stat -> true));
+	}
+
+	@Test
+	public void resumesCursorAcrossShardDirectories() throws IOException {
+		File dir = folder.getRoot();
+		List<String> expected = new ArrayList<>();
+		for (String shard : new String[] { "00", "01", "ff" }) {
+			if ("ff".equals(shard)) {
+				// 按名称排序时分桶文件夹与文件交错
+				expected.add(createFile(dir, "a.txt"));
+			}
+			File shardDir = new File(dir, shard);
+			for (String sub : new String[] { "0a", "0b" }) {
+				File subDir = new File(shardDir, sub);
+				subDir.mkdirs();
+				for (int i = 0; i < 3; i++) {
+					expected.add(shard + "/" + sub + "/" + createFile(subDir, "f" + i + ".txt"));
+				}
+			}
+		}
+		expected.add(createFile(dir, "z.txt"));
+
+		DirectoryLister lister = new DirectoryLister(1000, 100000);
+		for (int limit = 1; limit <= 5; limit++) {
+			assertEquals("limit:" + limit, expected, listAll(lister, dir, limit, stat -> true));
+		}
+	}
+
+	@Test
+	public void appliesFilterWithoutSkippingMatches() throws IOException {
+		File dir = folder.getRoot();
+		List<String> expected = new ArrayList<>();
+		for (int i = 0; i < 2000; i++) {
+			String name = createFile(dir, String.format("f%04d.%s", i, i % 97 == 0 ? "png" : "txt"));
+			if (name.endsWith(".png")) {
+				expected.add(name);
+			}
+		}
+
+		// 每页最多读取500个目录项，大部分页没有匹配的文件，游标仍然前进
+		DirectoryLister lister = new DirectoryLister(1000, 500);
+		assertEquals(expected, listAll(lister, dir, 10, stat -> stat.getFileName().endsWith(".png")));
+	}
+
+	@Test
+	public void returnsFullPagesFromDirectoryLargerThanMaxScan() throws IOException {
+		File dir = folder.getRoot();
+		List<String> expected = new ArrayList<>();
+		for (int i = 0; i < 5000; i++) {
+			expected.add(createFile(dir, String.format("f%05d", i)));
+		}
+
+		DirectoryLister lister = new DirectoryLister(1000, 1000);
+		FileListPage page = lister.list(dir, null, 100, stat -> true);
+		assertEquals(100, page.getFiles().size());
+		assertEquals("f00099", page.getNextCursor());
+
+		List<String> paths = new ArrayList<>();
+		String cursor = null;
+		int pages = 0;
+		do {
+			page = lister.list(dir, cursor, 100, stat -> true);
+			for (FileStat stat : page.getFiles()) {
+				paths.add(stat.getPath());
+			}
+			cursor = page.getNextCursor();
+			pages++;
+			assertTrue(cursor == null || page.getFiles().size() == 100);
+		} while (cursor != null);
+		assertEquals(expected, paths);
+		assertTrue("pages:" + pages, pages <= 51);
+	}
+
+	@Test
+	public void returnsEmptyPageForMissingDirectory() throws IOException {
+		DirectoryLister lister = new DirectoryLister(1000, 100000);
+		FileListPage page = lister.list(new File(folder.getRoot(), "missing"), null, 10, stat -> true);
+		assertTrue(page.getFiles().isEmpty());
+		assertNull(page.getNextCursor());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void rejectsCursorOutsideGroup() throws IOException {
+		new DirectoryLister(1000, 100000).list(folder.getRoot(), "00/../../etc", 10, stat -> true);
+	}
+
+	private List<String> listAll(DirectoryLister lister, File dir, int limit, Predicate<FileStat> filter)
+			throws IOException {
+		List<String> paths = new ArrayList<>();
+		String cursor = null;
+		do {
+			FileListPage page = lister.list(dir, cursor, limit, filter);
+			assertTrue(page.getFiles().size() <= limit);
+			for (FileStat stat : page.getFiles()) {
+				paths.add(stat.getPath());
+			}
+			cursor = page.getNextCursor();
+		} while (cursor != null);
+		return paths;
+	}
+
+	private String createFile(File dir, String name) throws IOException {
+		Files.write(new File(dir, name).toPath(), new byte[] { 1 });
+		return name;
+	}
+}